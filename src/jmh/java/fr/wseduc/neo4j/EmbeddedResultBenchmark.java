@@ -0,0 +1,159 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Conversion of embedded results (scalars, nodes, maps, node collections and paths) to JSON,
+ * on a store created for the run. The reply is copied as the local event bus does,
+ * a JsonObject for tree and a Buffer for encoded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class EmbeddedResultBenchmark {
+
+	@Param({"1000", "100000"})
+	public int nodes;
+
+	@Param({"tree", "encoded"})
+	public String mode;
+
+	private Path store;
+	private Neo4jEmbedded db;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		store = Files.createTempDirectory("neo4j-bench");
+		// queries run on the benchmark thread, without the executor lanes
+		JsonObject config = new JsonObject()
+				.putString("datastore-path", store.toString())
+				.putObject("executor", new JsonObject().putBoolean("enabled", false));
+		db = new Neo4jEmbedded(config, null, LoggerFactory.getLogger(EmbeddedResultBenchmark.class));
+		for (int i = 0; i < nodes; i += 10000) {
+			execute("UNWIND range({from}, {to}) AS i " +
+					"CREATE (:Bench {id : i, name : 'node ' + i, login : 'login.' + i, profiles : ['Student', 'Relative']})",
+					new JsonObject().putNumber("from", i).putNumber("to", Math.min(i + 10000, nodes) - 1), null);
+			execute("UNWIND range({from}, {to}) AS i " +
+					"CREATE (:Pair {id : i})-[:NEXT {rank : i, weights : [i, i + 1]}]->(:Pair {id : i})",
+					new JsonObject().putNumber("from", i).putNumber("to", Math.min(i + 10000, nodes) - 1), null);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		db.close();
+		Files.walkFileTree(store, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Benchmark
+	public void scalars(Blackhole bh) {
+		execute("MATCH (n:Bench) RETURN n.id as id, n.name as name, n.profiles as profiles", null, bh);
+	}
+
+	@Benchmark
+	public void nodes(Blackhole bh) {
+		execute("MATCH (n:Bench) RETURN n", null, bh);
+	}
+
+	@Benchmark
+	public void maps(Blackhole bh) {
+		execute("MATCH (n:Bench) RETURN {id : n.id, name : n.name, profiles : n.profiles} as m", null, bh);
+	}
+
+	@Benchmark
+	public void nodeCollections(Blackhole bh) {
+		execute("MATCH (n:Bench) RETURN n.id % 100 as g, collect(n) as nodes", null, bh);
+	}
+
+	@Benchmark
+	public void paths(Blackhole bh) {
+		execute("MATCH p = (:Pair)-[r:NEXT]->() RETURN r, p", null, bh);
+	}
+
+	private void execute(String query, JsonObject params, final Blackhole bh) {
+		if (bh != null && "encoded".equals(mode)) {
+			db.executeEncoded(query, params, false, new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer res) {
+					bh.consume(res.copy());
+				}
+			}, new Handler<JsonObject>() {
+				@Override
+				public void handle(JsonObject res) {
+					throw new IllegalStateException(res.getString("message"));
+				}
+			});
+			return;
+		}
+		db.execute(query, params, false, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				if (res.getString("message") != null) {
+					throw new IllegalStateException(res.getString("message"));
+				}
+				if (bh != null) {
+					bh.consume(res.copy());
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,98 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Encoding of request bodies by Neo4jRest before sending them, with and without gzip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RequestEncodingBenchmark {
+
+	private static final String QUERY =
+			"MATCH (u:User)-[:IN]->(:ProfileGroup)-[:DEPENDS]->(s:Structure) " +
+			"WHERE u.id IN {ids} AND s.id = {structureId} " +
+			"RETURN u.id as id, u.login as login, u.displayName as displayName, collect(s.name) as structures";
+	private static final JsonArray RESULT_DATA_CONTENTS = new JsonArray().add("rest");
+
+	@Param({"10", "1000"})
+	public int ids;
+
+	@Param({"false", "true"})
+	public boolean gzip;
+
+	private JsonObject params;
+	private JsonArray batch;
+	private int gzipMinSize;
+
+	@Setup
+	public void setup() {
+		JsonArray list = new JsonArray();
+		for (int i = 0; i < ids; i++) {
+			list.addString("3f0e6f0c-2f1d-4e5a-9b7c-" + String.format("%012d", i));
+		}
+		params = new JsonObject().putArray("ids", list).putString("structureId", "structure-1");
+		batch = new JsonArray();
+		for (int i = 0; i < 100; i++) {
+			batch.addObject(new JsonObject().putString("query", QUERY).putObject("params", params));
+		}
+		gzipMinSize = gzip ? 0 : -1;
+	}
+
+	@Benchmark
+	public Neo4jRest.RequestBody cypher() {
+		return Neo4jRest.encode(Neo4jRest.cypherBody(QUERY, params), gzipMinSize, 1);
+	}
+
+	@Benchmark
+	public Neo4jRest.RequestBody batch() {
+		return Neo4jRest.encode(Neo4jRest.batchBody(batch), gzipMinSize, 1);
+	}
+
+	@Benchmark
+	public Neo4jRest.RequestBody transaction() {
+		JsonArray statements = new JsonArray();
+		for (Object q : batch) {
+			statements.addObject(Neo4jRest.statement(((JsonObject) q).getString("query"),
+					((JsonObject) q).getObject("params"), RESULT_DATA_CONTENTS));
+		}
+		return Neo4jRest.encode(Neo4jRest.transactionBody(statements), gzipMinSize, 1);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.nio.charset.Charset;
+
+/**
+ * Synthetic /cypher responses, shaped as the ones of the Neo4j 2.3 REST API.
+ */
+final class RestPayloads {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private RestPayloads() {}
+
+	static byte[] cypher(int rows, String shape) {
+		StringBuilder sb = new StringBuilder(rows * 256);
+		switch (shape) {
+			case "wide" :
+				sb.append("{\"columns\":[");
+				for (int c = 0; c < 20; c++) {
+					sb.append((c > 0) ? "," : "").append("\"c").append(c).append('"');
+				}
+				sb.append("],\"data\":[");
+				for (int i = 0; i < rows; i++) {
+					sb.append((i > 0) ? "," : "").append('[');
+					wideRow(sb, i);
+					sb.append(']');
+				}
+				break;
+			case "nodes" :
+				sb.append("{\"columns\":[\"u\",\"s\"],\"data\":[");
+				for (int i = 0; i < rows; i++) {
+					sb.append((i > 0) ? "," : "").append('[');
+					node(sb, i, "User");
+					sb.append(',');
+					node(sb, i % 100, "Structure");
+					sb.append(']');
+				}
+				break;
+			default :
+				throw new IllegalArgumentException("Unknown shape " + shape);
+		}
+		return sb.append("]}").toString().getBytes(UTF8);
+	}
+
+	private static void wideRow(StringBuilder sb, int i) {
+		for (int c = 0; c < 20; c++) {
+			if (c > 0) {
+				sb.append(',');
+			}
+			switch (c % 5) {
+				case 0 :
+					sb.append(i * 31 + c);
+					break;
+				case 1 :
+					sb.append("\"value ").append(i).append(" \\u00e9l\\u00e8ve ").append(c).append('"');
+					break;
+				case 2 :
+					sb.append(i * 1.5 + c);
+					break;
+				case 3 :
+					sb.append((i % 2 == 0) ? "true" : "null");
+					break;
+				default :
+					sb.append("[\"a").append(i).append("\",\"b").append(c).append("\"]");
+			}
+		}
+	}
+
+	private static void node(StringBuilder sb, int id, String label) {
+		String self = "http://localhost:7474/db/data/node/" + id;
+		sb.append("{\"extensions\":{},\"metadata\":{\"id\":").append(id)
+				.append(",\"labels\":[\"").append(label).append("\"]}")
+				.append(",\"paged_traverse\":\"").append(self).append("/paged/traverse/{returnType}{?pageSize,leaseTime}\"")
+				.append(",\"outgoing_relationships\":\"").append(self).append("/relationships/out\"")
+				.append(",\"labels\":\"").append(self).append("/labels\"")
+				.append(",\"traverse\":\"").append(self).append("/traverse/{returnType}\"")
+				.append(",\"all_typed_relationships\":\"").append(self).append("/relationships/all/{-list|&|types}\"")
+				.append(",\"property\":\"").append(self).append("/properties/{key}\"")
+				.append(",\"self\":\"").append(self).append('"')
+				.append(",\"properties\":\"").append(self).append("/properties\"")
+				.append(",\"data\":{\"id\":\"").append(label.toLowerCase()).append('-').append(id)
+				.append("\",\"login\":\"login.").append(id)
+				.append("\",\"displayName\":\"Display Name ").append(id)
+				.append("\",\"profiles\":[\"Student\",\"Relative\"],\"modified\":").append(1400000000000l + id)
+				.append(",\"checksum\":").append(id * 7).append("}}");
+	}
+
+}
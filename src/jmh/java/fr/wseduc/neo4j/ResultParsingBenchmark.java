@@ -0,0 +1,92 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Transformation of REST responses : streamed parsing fed by network sized chunks, as done by Neo4jRest,
+ * against the historical baseline (decoding of the whole document followed by the row transformation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ResultParsingBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 8192;
+
+	@Param({"10000", "100000", "1000000"})
+	public int rows;
+
+	@Param({"wide", "nodes"})
+	public String shape;
+
+	private byte[] payload;
+
+	@Setup
+	public void setup() {
+		payload = RestPayloads.cypher(rows, shape);
+	}
+
+	@Benchmark
+	public JsonArray stream() {
+		ResultCollector collector = new ResultCollector();
+		JsonStreamParser parser = new JsonStreamParser(new Neo4jResultParser(collector));
+		for (int offset = 0; offset < payload.length; offset += CHUNK_SIZE) {
+			parser.feed(payload, offset, Math.min(CHUNK_SIZE, payload.length - offset));
+		}
+		parser.end();
+		return collector.result(0);
+	}
+
+	/**
+	 * Historical baseline, not shipped code : a copy of the row loop of the removed
+	 * Neo4jRest.transformJson, kept to compare the streamed parsing with it.
+	 */
+	@Benchmark
+	public JsonArray treeBaseline() {
+		JsonObject json = new JsonObject(new String(payload, UTF8));
+		JsonArray columns = json.getArray("columns");
+		JsonArray out = new JsonArray();
+		for (Object row : json.getArray("data")) {
+			out.addObject(ResultCollector.transformRow(columns, (JsonArray) row));
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,352 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Folds runs of consecutive batch entries sharing the same query into one statement
+ * driven by UNWIND, where each parameter {p} is read from the row as _fold_row.p.
+ * Rows returned by a folded statement carry the index of their entry so the results
+ * can be split again with the usual shape.
+ *
+ * Only queries where each row stays independent are folded : no WITH, aggregation,
+ * DISTINCT, ORDER BY, SKIP, LIMIT or UNION, and parameters only in expressions.
+ * A run is folded only when every entry gives all the parameters of the query, as a
+ * missing parameter would be read as null instead of failing the batch.
+ * Other queries are sent as they are.
+ */
+public class BatchFolder {
+
+	static final String ROW = "_fold_row";
+	static final String INDEX = "_fold_idx";
+	private static final String ROWS = "_fold_rows";
+	private static final int MAX_CACHED_QUERIES = 10000;
+	private static final Set<String> refused = new HashSet<>(Arrays.asList(
+			"with", "distinct", "order", "skip", "limit", "union", "start", "using", "load", "call",
+			"periodic", "index", "constraint", "drop", ROW, INDEX, ROWS));
+	private static final Set<String> aggregates = new HashSet<>(Arrays.asList(
+			"count", "sum", "avg", "min", "max", "collect", "stdev", "stdevp", "percentilecont", "percentiledisc"));
+	private static final Set<String> beforeExpression = new HashSet<>(Arrays.asList(
+			"in", "and", "or", "xor", "not", "when", "then", "else", "case", "contains", "with", "where", "return"));
+	private static final Set<String> patternClauses = new HashSet<>(Arrays.asList(
+			"match", "create", "merge", "unique"));
+	private static final ConcurrentHashMap<String, Rewrite> rewrites = new ConcurrentHashMap<>();
+
+	private final int minRun;
+
+	public BatchFolder(JsonObject config) {
+		this.minRun = Math.max(config.getInteger("min-run", 2), 2);
+	}
+
+	/**
+	 * @return the folded batch, or null when no run can be folded
+	 */
+	public Folded fold(JsonArray queries) {
+		JsonArray out = new JsonArray();
+		int[] starts = new int[queries.size() + 1];
+		boolean[] folded = new boolean[queries.size()];
+		boolean any = false;
+		int i = 0;
+		while (i < queries.size()) {
+			JsonObject q = queries.get(i);
+			String query = q.getString("query");
+			int end = i + 1;
+			while (end < queries.size() && query != null &&
+					query.equals(((JsonObject) queries.get(end)).getString("query"))) {
+				end++;
+			}
+			Rewrite rewritten = (end - i >= minRun) ? rewriteOf(query) : null;
+			if (rewritten != null && !rewritten.acceptsAll(queries, i, end)) {
+				rewritten = null;
+			}
+			starts[out.size()] = i;
+			if (rewritten == null) {
+				end = i + 1;
+				out.addObject(q);
+			} else {
+				JsonArray rows = new JsonArray();
+				for (int j = i; j < end; j++) {
+					JsonObject params = ((JsonObject) queries.get(j)).getObject("params");
+					rows.addObject(((params != null) ? params.copy() : new JsonObject()).putNumber(INDEX, j));
+				}
+				folded[out.size()] = true;
+				out.addObject(new JsonObject().putString("query", rewritten.query)
+						.putObject("params", new JsonObject().putArray(ROWS, rows)));
+				any = true;
+			}
+			i = end;
+		}
+		starts[out.size()] = queries.size();
+		return any ? new Folded(out, Arrays.copyOf(starts, out.size() + 1), folded) : null;
+	}
+
+	public static final class Folded {
+
+		private final JsonArray queries;
+		private final int[] starts;
+		private final boolean[] folded;
+
+		private Folded(JsonArray queries, int[] starts, boolean[] folded) {
+			this.queries = queries;
+			this.starts = starts;
+			this.folded = folded;
+		}
+
+		public JsonArray queries() {
+			return queries;
+		}
+
+		/**
+		 * @return the reply of the folded batch as if the entries had been sent one by one,
+		 * or null when it doesn't match the folded batch
+		 */
+		public JsonObject unfold(JsonObject res) {
+			JsonArray results = res.getArray("results");
+			if (results == null || results.size() != queries.size()) {
+				return null;
+			}
+			JsonArray out = new JsonArray();
+			for (int k = 0; k < queries.size(); k++) {
+				JsonObject r = results.get(k);
+				if (!folded[k]) {
+					out.addObject(r.putNumber("idx", starts[k]));
+					continue;
+				}
+				JsonArray[] split = new JsonArray[starts[k + 1] - starts[k]];
+				for (int j = 0; j < split.length; j++) {
+					split[j] = new JsonArray();
+				}
+				for (Object o : r.getArray("result", new JsonArray())) {
+					JsonObject row = (JsonObject) o;
+					Number idx = row.getNumber(INDEX);
+					if (idx == null || idx.intValue() < starts[k] || idx.intValue() >= starts[k + 1]) {
+						return null;
+					}
+					row.removeField(INDEX);
+					split[idx.intValue() - starts[k]].addObject(row);
+				}
+				for (int j = 0; j < split.length; j++) {
+					out.addObject(new JsonObject().putArray("result", split[j]).putNumber("idx", starts[k] + j));
+				}
+			}
+			return res.copy().putArray("results", out);
+		}
+
+	}
+
+	/**
+	 * Folded query and the names of the parameters it reads from the rows.
+	 */
+	private static final class Rewrite {
+
+		private static final Rewrite REFUSED = new Rewrite(null, null);
+
+		private final String query;
+		private final Set<String> parameters;
+
+		private Rewrite(String query, Set<String> parameters) {
+			this.query = query;
+			this.parameters = parameters;
+		}
+
+		private boolean acceptsAll(JsonArray queries, int start, int end) {
+			for (int j = start; j < end; j++) {
+				JsonObject params = ((JsonObject) queries.get(j)).getObject("params");
+				for (String name : parameters) {
+					if (params == null || !params.containsField(name)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+	}
+
+	static String rewrite(String query) {
+		Rewrite rewritten = rewriteOf(query);
+		return (rewritten != null) ? rewritten.query : null;
+	}
+
+	private static Rewrite rewriteOf(String query) {
+		if (query == null) {
+			return null;
+		}
+		Rewrite rewritten = rewrites.get(query);
+		if (rewritten == null) {
+			rewritten = scan(query);
+			if (rewritten == null) {
+				rewritten = Rewrite.REFUSED;
+			}
+			if (rewrites.size() >= MAX_CACHED_QUERIES) {
+				rewrites.clear();
+			}
+			rewrites.put(query, rewritten);
+		}
+		return (rewritten != Rewrite.REFUSED) ? rewritten : null;
+	}
+
+	private static Rewrite scan(String query) {
+		final int length = query.length();
+		final Set<String> parameters = new HashSet<>();
+		StringBuilder out = new StringBuilder(length + 64).append("UNWIND {").append(ROWS)
+				.append("} AS ").append(ROW).append(' ');
+		char previous = ' ';
+		char beforePrevious = ' ';
+		String previousWord = null;
+		String wordBeforePrevious = null;
+		boolean returns = false;
+		int i = 0;
+		while (i < length) {
+			char c = query.charAt(i);
+			if (c == '\'' || c == '"' || c == '`') {
+				int end = CypherClassifier.skipQuoted(query, i, c);
+				out.append(query, i, end);
+				i = end;
+				beforePrevious = previous;
+				previous = (c == '`') ? 'a' : c;
+				previousWord = null;
+			} else if (c == '/' && i + 1 < length && (query.charAt(i + 1) == '/' || query.charAt(i + 1) == '*')) {
+				return null;
+			} else if (Character.isLetter(c) || c == '_') {
+				int start = i;
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_')) {
+					i++;
+				}
+				String word = query.substring(start, i).toLowerCase();
+				if (previous != '.' && !accepted(word, previous, previousWord, query, i)) {
+					return null;
+				}
+				out.append(query, start, i);
+				if (previous != '.' && "return".equals(word)) {
+					if (returns || next(query, i) == '*') {
+						return null;
+					}
+					returns = true;
+					out.append(' ').append(ROW).append('.').append(INDEX).append(" AS ").append(INDEX).append(',');
+				}
+				beforePrevious = previous;
+				previous = 'a';
+				previousWord = word;
+			} else if (c == '{' && parameterEnd(query, i) > 0) {
+				if (!expression(previous, beforePrevious, previousWord, wordBeforePrevious)) {
+					return null;
+				}
+				int end = parameterEnd(query, i);
+				String name = query.substring(i + 1, end).trim();
+				parameters.add(name);
+				out.append(ROW).append(".`").append(name).append('`');
+				i = end + 1;
+				beforePrevious = previous;
+				previous = 'a';
+				previousWord = null;
+			} else {
+				out.append(c);
+				if (!Character.isWhitespace(c)) {
+					beforePrevious = previous;
+					previous = c;
+					wordBeforePrevious = previousWord;
+					previousWord = null;
+				}
+				i++;
+			}
+		}
+		return new Rewrite(out.toString(), parameters);
+	}
+
+	private static boolean accepted(String word, char previous, String previousWord, String query, int end) {
+		if (aggregates.contains(word) && next(query, end) == '(') {
+			return false;
+		} else if (previous == ':') {
+			// label, relationship type or map key
+			return true;
+		} else if ("with".equals(word)) {
+			return "starts".equals(previousWord) || "ends".equals(previousWord);
+		}
+		return !refused.contains(word);
+	}
+
+	/**
+	 * A parameter can be read from the row only where an expression is expected,
+	 * not as the properties of a pattern like (n:User {props}).
+	 */
+	private static boolean expression(char previous, char beforePrevious, String previousWord,
+			String wordBeforePrevious) {
+		if (previousWord != null) {
+			return beforeExpression.contains(previousWord);
+		}
+		switch (previous) {
+			case '(' :
+				// function call, not a node pattern
+				return beforePrevious == 'a' && !patternClauses.contains(wordBeforePrevious);
+			case '[' :
+				return beforePrevious != '-' && beforePrevious != '<';
+			case '=' :
+			case '<' :
+			case '>' :
+			case '+' :
+			case '-' :
+			case '*' :
+			case '/' :
+			case '%' :
+			case '^' :
+			case ',' :
+			case ':' :
+				return true;
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * @return the position of the closing brace of the parameter starting at i, or -1
+	 */
+	private static int parameterEnd(String query, int i) {
+		int end = query.indexOf('}', i);
+		if (end < 0) {
+			return -1;
+		}
+		String name = query.substring(i + 1, end).trim();
+		if (name.isEmpty()) {
+			return -1;
+		}
+		for (int j = 0; j < name.length(); j++) {
+			char c = name.charAt(j);
+			if (!Character.isLetterOrDigit(c) && c != '_') {
+				return -1;
+			}
+		}
+		return end;
+	}
+
+	private static char next(String query, int i) {
+		while (i < query.length() && Character.isWhitespace(query.charAt(i))) {
+			i++;
+		}
+		return (i < query.length()) ? query.charAt(i) : ' ';
+	}
+
+}
@@ -0,0 +1,418 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.file.AsyncFile;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Runs one statement over a large set of rows, given in the message or read from a file
+ * with one JSON object per line. Rows are sent by chunks through UNWIND, each chunk in its
+ * own transaction. The source is paused while the chunks in flight are at the concurrency
+ * limit, so only a few chunks are held in memory whatever the size of the input.
+ * Files are only read below the configured files-dir, and not at all without it.
+ */
+public class BulkLoad {
+
+	private static final int MAX_REPORTED_FAILURES = 100;
+
+	private final Vertx vertx;
+	private final GraphDatabase db;
+	private final int chunkSize;
+	private final int concurrency;
+	private final Path filesDir;
+	private final int maxLineLength;
+
+	public BulkLoad(Vertx vertx, GraphDatabase db, JsonObject config) {
+		this.vertx = vertx;
+		this.db = db;
+		this.chunkSize = Math.max(config.getInteger("chunk-size", 1000), 1);
+		this.concurrency = Math.max(config.getInteger("concurrency", 1), 1);
+		String dir = config.getString("files-dir");
+		this.filesDir = (dir != null) ? Paths.get(dir).toAbsolutePath().normalize() : null;
+		this.maxLineLength = Math.max(config.getInteger("max-line-length", 1048576), 1);
+	}
+
+	/**
+	 * @param request statement, rows or file, and optionally params, chunkSize, concurrency, progressAddress
+	 * and priority
+	 */
+	public void load(JsonObject request, final Handler<JsonObject> handler) {
+		String statement = request.getString("statement");
+		JsonArray rows = request.getArray("rows");
+		String file = request.getString("file");
+		if (statement == null || statement.trim().isEmpty() || (rows == null) == (file == null)) {
+			handler.handle(new JsonObject().putString("message", "Invalid statement, rows or file."));
+			return;
+		}
+		final Job job = new Job(statement, request, handler);
+		if (rows != null) {
+			job.source = new ArraySource(job, rows);
+			job.source.resume();
+			return;
+		}
+		if (filesDir == null) {
+			handler.handle(new JsonObject().putString("message", "Bulk load from files is disabled."));
+			return;
+		}
+		final String path = resolve(file);
+		if (path == null) {
+			handler.handle(new JsonObject().putString("message", "Invalid file : " + file));
+			return;
+		}
+		vertx.fileSystem().open(path, null, true, false, false, new Handler<AsyncResult<AsyncFile>>() {
+			@Override
+			public void handle(AsyncResult<AsyncFile> ar) {
+				if (ar.failed()) {
+					handler.handle(new JsonObject().putString("message", ar.cause().getMessage())
+							.putString("exception", ar.cause().getClass().getSimpleName()));
+					return;
+				}
+				job.source = new FileSource(job, ar.result(), maxLineLength);
+				job.source.resume();
+			}
+		});
+	}
+
+	/**
+	 * @return the real path of the file, relative to files-dir, or null when it is outside files-dir
+	 * or does not exist
+	 */
+	private String resolve(String file) {
+		try {
+			Path path = filesDir.resolve(file).normalize();
+			if (!path.startsWith(filesDir)) {
+				return null;
+			}
+			Path real = path.toRealPath();
+			return real.startsWith(filesDir.toRealPath()) ? real.toString() : null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private interface Source {
+
+		void pause();
+
+		void resume();
+
+	}
+
+	private final class Job {
+
+		private final GraphDatabase db;
+		private final String query;
+		private final JsonObject params;
+		private final int chunkSize;
+		private final int concurrency;
+		private final String progressAddress;
+		private final Handler<JsonObject> handler;
+		private final Deque<Chunk> ready = new ArrayDeque<>();
+		private final JsonArray failures = new JsonArray();
+		private Source source;
+		private JsonArray current = new JsonArray();
+		private long currentOffset;
+		private long read;
+		private long invalidRows;
+		private long loaded;
+		private int chunks;
+		private int failedChunks;
+		private int inFlight;
+		private boolean ended;
+		private boolean replied;
+
+		private Job(String statement, JsonObject request, Handler<JsonObject> handler) {
+			this.db = BulkLoad.this.db.withPriority(request.getString("priority"));
+			this.query = "UNWIND {rows} AS row " + statement;
+			this.params = request.getObject("params", new JsonObject());
+			this.chunkSize = Math.max(request.getInteger("chunkSize", BulkLoad.this.chunkSize), 1);
+			this.concurrency = Math.max(request.getInteger("concurrency", BulkLoad.this.concurrency), 1);
+			this.progressAddress = request.getString("progressAddress");
+			this.handler = handler;
+		}
+
+		private void add(Object row) {
+			if (current.size() == 0) {
+				currentOffset = read;
+			}
+			current.add(row);
+			read++;
+			if (current.size() >= chunkSize) {
+				ready.add(new Chunk(chunks++, currentOffset, current));
+				current = new JsonArray();
+				send();
+			}
+		}
+
+		private void invalid(String message) {
+			invalidRows++;
+			report(-1, read++, 1, message);
+		}
+
+		private void end() {
+			ended = true;
+			if (current.size() > 0) {
+				ready.add(new Chunk(chunks++, currentOffset, current));
+				current = new JsonArray();
+			}
+			send();
+		}
+
+		private void error(Throwable t) {
+			ended = true;
+			ready.clear();
+			if (!replied) {
+				replied = true;
+				handler.handle(new JsonObject().putString("message", t.getMessage())
+						.putString("exception", t.getClass().getSimpleName()));
+			}
+		}
+
+		private void send() {
+			if (replied) {
+				return;
+			}
+			while (inFlight < concurrency && !ready.isEmpty()) {
+				execute(ready.poll());
+			}
+			if (!ready.isEmpty()) {
+				source.pause();
+			} else if (!ended) {
+				source.resume();
+			} else if (inFlight == 0) {
+				replied = true;
+				handler.handle(progress().putArray("failures", failures));
+			}
+		}
+
+		private void execute(final Chunk chunk) {
+			inFlight++;
+			db.execute(query, params.copy().putArray("rows", chunk.rows), false, new Handler<JsonObject>() {
+				@Override
+				public void handle(JsonObject res) {
+					inFlight--;
+					String error = res.getString("message");
+					if (error == null) {
+						loaded += chunk.rows.size();
+					} else {
+						failedChunks++;
+						report(chunk.index, chunk.offset, chunk.rows.size(), error);
+					}
+					if (progressAddress != null) {
+						vertx.eventBus().publish(progressAddress, progress());
+					}
+					send();
+				}
+			});
+		}
+
+		private void report(int chunk, long offset, int size, String message) {
+			if (failures.size() < MAX_REPORTED_FAILURES) {
+				failures.addObject(new JsonObject()
+						.putNumber("chunk", chunk)
+						.putNumber("offset", offset)
+						.putNumber("size", size)
+						.putString("message", message));
+			}
+		}
+
+		private JsonObject progress() {
+			return new JsonObject()
+					.putNumber("read", read)
+					.putNumber("loaded", loaded)
+					.putNumber("chunks", chunks)
+					.putNumber("failedChunks", failedChunks)
+					.putNumber("invalidRows", invalidRows)
+					.putNumber("inFlight", inFlight)
+					.putBoolean("ended", ended && inFlight == 0 && ready.isEmpty());
+		}
+
+	}
+
+	private static final class Chunk {
+
+		private final int index;
+		private final long offset;
+		private final JsonArray rows;
+
+		private Chunk(int index, long offset, JsonArray rows) {
+			this.index = index;
+			this.offset = offset;
+			this.rows = rows;
+		}
+
+	}
+
+	/**
+	 * Rows of the message. A chunk completing synchronously resumes the source
+	 * from inside the loop, which then carries on instead of recursing.
+	 */
+	private static final class ArraySource implements Source {
+
+		private final Job job;
+		private final JsonArray rows;
+		private int index;
+		private boolean paused = true;
+		private boolean draining;
+
+		private ArraySource(Job job, JsonArray rows) {
+			this.job = job;
+			this.rows = rows;
+		}
+
+		@Override
+		public void pause() {
+			paused = true;
+		}
+
+		@Override
+		public void resume() {
+			paused = false;
+			if (draining) {
+				return;
+			}
+			draining = true;
+			while (!paused && index < rows.size()) {
+				job.add(rows.get(index++));
+			}
+			draining = false;
+			if (index == rows.size() && !job.ended) {
+				job.end();
+			}
+		}
+
+	}
+
+	/**
+	 * One JSON object per line. Lines which are not valid JSON, or longer than
+	 * max-line-length, are reported as failures of one row, with the chunk -1,
+	 * without their content. Only the incomplete line at the end of the last read
+	 * is kept between reads, and it is dropped once it is too long.
+	 */
+	private static final class FileSource implements Source {
+
+		private final Job job;
+		private final AsyncFile file;
+		private final int maxLineLength;
+		private Buffer pending = new Buffer();
+		private boolean skipping;
+		private boolean paused = true;
+
+		private FileSource(final Job job, final AsyncFile file, final int maxLineLength) {
+			this.job = job;
+			this.file = file;
+			this.maxLineLength = maxLineLength;
+			file.pause();
+			file.dataHandler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer data) {
+					int start = 0;
+					for (int i = 0; i < data.length(); i++) {
+						if (data.getByte(i) == '\n') {
+							if (skipping) {
+								skipping = false;
+							} else {
+								pending.appendBuffer(data.getBuffer(start, i));
+								line();
+							}
+							pending = new Buffer();
+							start = i + 1;
+						}
+					}
+					if (!skipping) {
+						pending.appendBuffer(data.getBuffer(start, data.length()));
+						if (pending.length() > maxLineLength) {
+							tooLong();
+							skipping = true;
+						}
+					}
+				}
+			});
+			file.endHandler(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					file.close();
+					if (!skipping) {
+						line();
+					}
+					job.end();
+				}
+			});
+			file.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					file.close();
+					job.error(t);
+				}
+			});
+		}
+
+		private void line() {
+			if (pending.length() > maxLineLength) {
+				tooLong();
+				return;
+			}
+			String l = pending.toString("UTF-8").trim();
+			if (l.isEmpty()) {
+				return;
+			}
+			try {
+				job.add(new JsonObject(l));
+			} catch (DecodeException e) {
+				job.invalid("Invalid JSON line.");
+			}
+		}
+
+		private void tooLong() {
+			pending = new Buffer();
+			job.invalid("Line longer than " + maxLineLength + " bytes.");
+		}
+
+		@Override
+		public void pause() {
+			if (!paused) {
+				paused = true;
+				file.pause();
+			}
+		}
+
+		@Override
+		public void resume() {
+			if (paused) {
+				paused = false;
+				file.resume();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens after consecutive transport failures (errors or timeouts) of a node.
+ * Once the reset delay is elapsed, one probe request is let through : its success
+ * closes the breaker, its failure opens it again. A probe which has neither succeeded
+ * nor failed after another reset delay is considered lost, and a new probe is let through.
+ */
+public class CircuitBreaker {
+
+	private final int threshold;
+	private final long resetDelay;
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong probeAt = new AtomicLong(-1);
+	private volatile long openedAt = -1;
+
+	public CircuitBreaker(int threshold, long resetDelay) {
+		this.threshold = threshold;
+		this.resetDelay = resetDelay;
+	}
+
+	public boolean allowRequest() {
+		if (openedAt < 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		if (now - openedAt < resetDelay) {
+			return false;
+		}
+		final long probe = probeAt.get();
+		return (probe < 0 || now - probe >= resetDelay) && probeAt.compareAndSet(probe, now);
+	}
+
+	/**
+	 * Gives back the probe taken by a request which will not be sent (rejected or expired),
+	 * so that the next request probes the node.
+	 */
+	public void releaseProbe() {
+		probeAt.set(-1);
+	}
+
+	public void onSuccess() {
+		failures.set(0);
+		openedAt = -1;
+		probeAt.set(-1);
+	}
+
+	/**
+	 * @return true if this failure opened the breaker
+	 */
+	public boolean onFailure() {
+		if (failures.incrementAndGet() == threshold || probeAt.get() >= 0) {
+			openedAt = System.currentTimeMillis();
+			probeAt.set(-1);
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isOpen() {
+		return openedAt >= 0;
+	}
+
+}
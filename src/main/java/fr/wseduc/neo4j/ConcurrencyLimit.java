@@ -0,0 +1,119 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Adaptive limit of the requests outstanding (in flight or waiting for a slot) on a node, AIMD driven
+ * by latency. Responses are averaged by windows of about limit samples, one round trip. When the average
+ * stays under tolerance x the baseline (the lowest average, slowly following the recent ones) and the
+ * limit was reached, the limit grows by one. When it goes above, or on the first failure or timeout
+ * of the window, the limit is cut by 10 %. Not thread safe, the scheduler of the node serializes its calls.
+ */
+public class ConcurrencyLimit {
+
+	private static final int MIN_WINDOW = 8;
+	private static final double BACKOFF = 0.9;
+	private static final double BASELINE_DRIFT = 0.02;
+
+	private final int min;
+	private final int max;
+	private final double tolerance;
+	private int limit;
+	private double baseline;
+	private double lastWindow;
+	private long windowSum;
+	private int windowSamples;
+	private boolean windowLimited;
+	private boolean windowDropped;
+	private long rejected;
+
+	public ConcurrencyLimit(JsonObject config, int initial) {
+		this.min = Math.max(config.getInteger("min", 4), 1);
+		this.max = Math.max(config.getInteger("max", 1000), min);
+		Number t = config.getNumber("tolerance");
+		this.tolerance = Math.max((t != null) ? t.doubleValue() : 1.5, 1d);
+		this.limit = Math.min(Math.max(config.getInteger("initial", initial), min), max);
+	}
+
+	/**
+	 * @return true, and counts a rejection, if a new request would exceed the limit
+	 */
+	public boolean rejects(int outstanding) {
+		if (outstanding < limit) {
+			return false;
+		}
+		rejected++;
+		return true;
+	}
+
+	/**
+	 * @param rtt time from the submission of the request to its response, in nanoseconds
+	 * @param outstanding requests outstanding when the response is received, this one included
+	 */
+	public void onSample(long rtt, int outstanding) {
+		windowSum += rtt;
+		windowSamples++;
+		// under the limit, the demand and not the node bounds the requests : no reason to grow
+		windowLimited |= (outstanding >= limit);
+		if (windowSamples < Math.max(limit, MIN_WINDOW)) {
+			return;
+		}
+		final double average = (double) windowSum / windowSamples;
+		if (baseline == 0 || average < baseline) {
+			baseline = average;
+		} else {
+			// follows a node which got slower for good, else the limit would stay at its minimum
+			baseline += (average - baseline) * BASELINE_DRIFT;
+		}
+		if (average > tolerance * baseline) {
+			if (!windowDropped) {
+				limit = Math.max((int) (limit * BACKOFF), min);
+			}
+		} else if (windowLimited && !windowDropped) {
+			limit = Math.min(limit + 1, max);
+		}
+		lastWindow = average;
+		windowSum = 0;
+		windowSamples = 0;
+		windowLimited = false;
+		windowDropped = false;
+	}
+
+	public void onDrop() {
+		if (!windowDropped) {
+			windowDropped = true;
+			limit = Math.max((int) (limit * BACKOFF), min);
+		}
+	}
+
+	public int limit() {
+		return limit;
+	}
+
+	public JsonObject stats() {
+		return new JsonObject()
+				.putNumber("limit", limit)
+				.putNumber("rejected", rejected)
+				.putNumber("rtt", lastWindow / 1000000d)
+				.putNumber("rttBaseline", baseline / 1000000d);
+	}
+
+}
@@ -0,0 +1,128 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells whether a Cypher query can write. The query is scanned once: string literals,
+ * escaped names, comments and parameters are skipped and only words in clause position
+ * are compared with the writing clauses. Verdicts are memoized by query text.
+ */
+public final class CypherClassifier {
+
+	private static final int MAX_CACHED_QUERIES = 10000;
+	private static final Set<String> writingClauses = new HashSet<>(Arrays.asList(
+			"create", "merge", "delete", "detach", "set", "remove", "foreach", "drop", "call", "load", "periodic"));
+	private static final ConcurrentHashMap<String, Boolean> verdicts = new ConcurrentHashMap<>();
+
+	private CypherClassifier() {}
+
+	public static boolean isWrite(String query) {
+		if (query == null) {
+			return false;
+		}
+		Boolean verdict = verdicts.get(query);
+		if (verdict == null) {
+			verdict = scan(query);
+			if (verdicts.size() >= MAX_CACHED_QUERIES) {
+				verdicts.clear();
+			}
+			verdicts.put(query, verdict);
+		}
+		return verdict;
+	}
+
+	static boolean scan(String query) {
+		final int length = query.length();
+		char previous = ' ';
+		int i = 0;
+		while (i < length) {
+			char c = query.charAt(i);
+			if (c == '\'' || c == '"') {
+				i = skipQuoted(query, i, c);
+				previous = c;
+			} else if (c == '`') {
+				i = skipQuoted(query, i, c);
+				previous = 'a';
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '/') {
+				i = query.indexOf('\n', i);
+				if (i < 0) {
+					return false;
+				}
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*') {
+				i = query.indexOf("*/", i + 2);
+				if (i < 0) {
+					return false;
+				}
+				i += 2;
+			} else if (Character.isLetter(c) || c == '_') {
+				int start = i;
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_')) {
+					i++;
+				}
+				if (isClause(query, start, i, previous)) {
+					return true;
+				}
+				previous = 'a';
+			} else {
+				if (!Character.isWhitespace(c)) {
+					previous = c;
+				}
+				i++;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isClause(String query, int start, int end, char previous) {
+		final int length = end - start;
+		if (length < 3 || length > 8 || previous == '.' || previous == ':' || previous == '{' || previous == '$') {
+			return false;
+		}
+		for (int i = end; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == ':') {
+				return false;
+			} else if (!Character.isWhitespace(c)) {
+				break;
+			}
+		}
+		return writingClauses.contains(query.substring(start, end).toLowerCase());
+	}
+
+	static int skipQuoted(String query, int start, char quote) {
+		int i = start + 1;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (c == '\\' && quote != '`') {
+				i += 2;
+			} else if (c == quote) {
+				return i + 1;
+			} else {
+				i++;
+			}
+		}
+		return i;
+	}
+
+}
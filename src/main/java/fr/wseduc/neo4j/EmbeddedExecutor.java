@@ -0,0 +1,120 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Runs embedded queries on two bounded thread pools, one for reads and one for writes.
+ * A task is refused instead of queued when the queue of its lane is full.
+ */
+public class EmbeddedExecutor {
+
+	private final Lane read;
+	private final Lane write;
+
+	private static final class Lane {
+		private final ThreadPoolExecutor pool;
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+		private final LatencyHistogram execution = new LatencyHistogram();
+		private final AtomicLong rejected = new AtomicLong();
+
+		private Lane(final String name, int threads, int queueSize) {
+			pool = new ThreadPoolExecutor(threads, threads, 0l, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "neo4j-embedded-" + name + "-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		private JsonObject stats() {
+			return new JsonObject()
+					.putNumber("threads", pool.getMaximumPoolSize())
+					.putNumber("active", pool.getActiveCount())
+					.putNumber("queued", pool.getQueue().size())
+					.putNumber("rejected", rejected.get())
+					.putObject("queueWait", queueWait.snapshot())
+					.putObject("execution", execution.snapshot());
+		}
+	}
+
+	public EmbeddedExecutor(JsonObject config) {
+		final int queueSize = config.getInteger("queue-size", 1000);
+		read = new Lane("read", config.getInteger("read-threads", Runtime.getRuntime().availableProcessors()), queueSize);
+		write = new Lane("write", config.getInteger("write-threads", 2), queueSize);
+	}
+
+	/**
+	 * @return false if the lane is saturated and the task is refused
+	 */
+	public boolean execute(boolean isWrite, final Runnable task) {
+		final Lane lane = isWrite ? write : read;
+		final long queued = System.nanoTime();
+		try {
+			lane.pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					final long start = System.nanoTime();
+					lane.queueWait.record(start - queued);
+					try {
+						task.run();
+					} finally {
+						lane.execution.record(System.nanoTime() - start);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			lane.rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	public JsonObject stats() {
+		return new JsonObject()
+				.putObject("read", read.stats())
+				.putObject("write", write.stats());
+	}
+
+	public void close(long timeout) {
+		read.pool.shutdown();
+		write.pool.shutdown();
+		try {
+			read.pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+			write.pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,574 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Converts the values of embedded results, either to the JsonObject tree or into a
+ * {@link JsonStreamWriter}. The serializer is looked up by class in a table filled on
+ * first use, and {@link Row} keeps the one of each column while its type doesn't change.
+ *
+ * Nodes are written as {"data" : {...}}, relationships as {"id", "type", "start", "end", "data"}
+ * and paths as {"length", "nodes", "relationships"}.
+ */
+final class EmbeddedSerializers {
+
+	interface Serializer {
+
+		Object toJson(Object v);
+
+		void write(JsonStreamWriter w, Object v);
+
+	}
+
+	private static final ConcurrentMap<Class<?>, Serializer> serializers = new ConcurrentHashMap<>();
+
+	private EmbeddedSerializers() {
+	}
+
+	static Serializer forClass(Class<?> type) {
+		Serializer s = serializers.get(type);
+		if (s == null) {
+			s = resolve(type);
+			serializers.putIfAbsent(type, s);
+		}
+		return s;
+	}
+
+	static Object toJson(Object v) {
+		return (v == null) ? null : forClass(v.getClass()).toJson(v);
+	}
+
+	static void write(JsonStreamWriter w, Object v) {
+		if (v == null) {
+			w.nullValue();
+		} else {
+			forClass(v.getClass()).write(w, v);
+		}
+	}
+
+	/**
+	 * Serializes the rows of a result, the serializer of each column is resolved
+	 * again only when the class of its value changes.
+	 */
+	static final class Row {
+
+		private final String[] columns;
+		private final Class<?>[] types;
+		private final Serializer[] serializers;
+
+		Row(List<String> columns) {
+			this.columns = columns.toArray(new String[columns.size()]);
+			this.types = new Class<?>[this.columns.length];
+			this.serializers = new Serializer[this.columns.length];
+		}
+
+		JsonArray columns() {
+			JsonArray a = new JsonArray();
+			for (String column : columns) {
+				a.addString(column);
+			}
+			return a;
+		}
+
+		JsonObject toJson(Map<String, Object> row) {
+			JsonObject json = new JsonObject();
+			for (int i = 0; i < columns.length; i++) {
+				Object v = row.get(columns[i]);
+				json.putValue(columns[i], (v == null) ? null : serializer(i, v).toJson(v));
+			}
+			return json;
+		}
+
+		JsonArray toJsonArray(Map<String, Object> row) {
+			JsonArray json = new JsonArray();
+			for (int i = 0; i < columns.length; i++) {
+				Object v = row.get(columns[i]);
+				json.add((v == null) ? null : serializer(i, v).toJson(v));
+			}
+			return json;
+		}
+
+		void write(JsonStreamWriter w, Map<String, Object> row) {
+			w.startObject();
+			for (int i = 0; i < columns.length; i++) {
+				w.fieldName(columns[i]);
+				writeColumn(w, i, row.get(columns[i]));
+			}
+			w.endObject();
+		}
+
+		void writeArray(JsonStreamWriter w, Map<String, Object> row) {
+			w.startArray();
+			for (int i = 0; i < columns.length; i++) {
+				writeColumn(w, i, row.get(columns[i]));
+			}
+			w.endArray();
+		}
+
+		void writeColumns(JsonStreamWriter w) {
+			w.startArray();
+			for (String column : columns) {
+				w.value(column);
+			}
+			w.endArray();
+		}
+
+		private void writeColumn(JsonStreamWriter w, int i, Object v) {
+			if (v == null) {
+				w.nullValue();
+			} else {
+				serializer(i, v).write(w, v);
+			}
+		}
+
+		private Serializer serializer(int i, Object v) {
+			Class<?> type = v.getClass();
+			if (type != types[i]) {
+				types[i] = type;
+				serializers[i] = forClass(type);
+			}
+			return serializers[i];
+		}
+
+	}
+
+	private static Serializer resolve(Class<?> type) {
+		if (type == String.class) {
+			return STRING;
+		} else if (Number.class.isAssignableFrom(type)) {
+			return NUMBER;
+		} else if (type == Boolean.class) {
+			return BOOLEAN;
+		} else if (Node.class.isAssignableFrom(type)) {
+			return NODE;
+		} else if (Relationship.class.isAssignableFrom(type)) {
+			return RELATIONSHIP;
+		} else if (Path.class.isAssignableFrom(type)) {
+			return PATH;
+		} else if (Map.class.isAssignableFrom(type)) {
+			return MAP;
+		} else if (Iterable.class.isAssignableFrom(type)) {
+			return ITERABLE;
+		} else if (type.isArray()) {
+			Class<?> component = type.getComponentType();
+			if (!component.isPrimitive()) {
+				return OBJECT_ARRAY;
+			} else if (component == long.class) {
+				return LONG_ARRAY;
+			} else if (component == int.class) {
+				return INT_ARRAY;
+			} else if (component == short.class) {
+				return SHORT_ARRAY;
+			} else if (component == byte.class) {
+				return BYTE_ARRAY;
+			} else if (component == double.class) {
+				return DOUBLE_ARRAY;
+			} else if (component == float.class) {
+				return FLOAT_ARRAY;
+			} else if (component == boolean.class) {
+				return BOOLEAN_ARRAY;
+			} else if (component == char.class) {
+				return CHAR_ARRAY;
+			}
+		}
+		return TO_STRING;
+	}
+
+	private static final Serializer STRING = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			return v;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.value((String) v);
+		}
+	};
+
+	private static final Serializer NUMBER = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			return v;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.value((Number) v);
+		}
+	};
+
+	private static final Serializer BOOLEAN = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			return v;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.value(((Boolean) v).booleanValue());
+		}
+	};
+
+	private static final Serializer TO_STRING = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			return v.toString();
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.value(v.toString());
+		}
+	};
+
+	private static final Serializer NODE = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			return new JsonObject().putObject("data", properties((Node) v));
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startObject().fieldName("data");
+			writeProperties(w, (Node) v);
+			w.endObject();
+		}
+	};
+
+	private static final Serializer RELATIONSHIP = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			Relationship r = (Relationship) v;
+			return new JsonObject()
+					.putNumber("id", r.getId())
+					.putString("type", r.getType().name())
+					.putNumber("start", r.getStartNode().getId())
+					.putNumber("end", r.getEndNode().getId())
+					.putObject("data", properties(r));
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			Relationship r = (Relationship) v;
+			w.startObject()
+					.fieldName("id").value(r.getId())
+					.fieldName("type").value(r.getType().name())
+					.fieldName("start").value(r.getStartNode().getId())
+					.fieldName("end").value(r.getEndNode().getId())
+					.fieldName("data");
+			writeProperties(w, r);
+			w.endObject();
+		}
+	};
+
+	private static final Serializer PATH = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			Path p = (Path) v;
+			JsonArray nodes = new JsonArray();
+			for (Node n : p.nodes()) {
+				nodes.addObject((JsonObject) NODE.toJson(n));
+			}
+			JsonArray relationships = new JsonArray();
+			for (Relationship r : p.relationships()) {
+				relationships.addObject((JsonObject) RELATIONSHIP.toJson(r));
+			}
+			return new JsonObject()
+					.putNumber("length", p.length())
+					.putArray("nodes", nodes)
+					.putArray("relationships", relationships);
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			Path p = (Path) v;
+			w.startObject().fieldName("length").value(p.length()).fieldName("nodes").startArray();
+			for (Node n : p.nodes()) {
+				NODE.write(w, n);
+			}
+			w.endArray().fieldName("relationships").startArray();
+			for (Relationship r : p.relationships()) {
+				RELATIONSHIP.write(w, r);
+			}
+			w.endArray().endObject();
+		}
+	};
+
+	/**
+	 * Null map values are replied as empty strings, as they always have been.
+	 */
+	private static final Serializer MAP = new Serializer() {
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object toJson(Object v) {
+			JsonObject j = new JsonObject();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+				Object value = e.getValue();
+				j.putValue(e.getKey(), (value == null) ? "" : EmbeddedSerializers.toJson(value));
+			}
+			return j;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void write(JsonStreamWriter w, Object v) {
+			w.startObject();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+				w.fieldName(e.getKey());
+				if (e.getValue() == null) {
+					w.value("");
+				} else {
+					EmbeddedSerializers.write(w, e.getValue());
+				}
+			}
+			w.endObject();
+		}
+	};
+
+	private static final Serializer ITERABLE = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (Object o : (Iterable<?>) v) {
+				a.add(EmbeddedSerializers.toJson(o));
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (Object o : (Iterable<?>) v) {
+				EmbeddedSerializers.write(w, o);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer OBJECT_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (Object o : (Object[]) v) {
+				a.add(EmbeddedSerializers.toJson(o));
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (Object o : (Object[]) v) {
+				EmbeddedSerializers.write(w, o);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer LONG_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (long l : (long[]) v) {
+				a.addNumber(l);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (long l : (long[]) v) {
+				w.value(l);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer INT_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (int i : (int[]) v) {
+				a.addNumber(i);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (int i : (int[]) v) {
+				w.value(i);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer SHORT_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (short i : (short[]) v) {
+				a.addNumber(i);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (short i : (short[]) v) {
+				w.value(i);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer BYTE_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (byte i : (byte[]) v) {
+				a.addNumber(i);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (byte i : (byte[]) v) {
+				w.value(i);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer DOUBLE_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (double d : (double[]) v) {
+				a.addNumber(d);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (double d : (double[]) v) {
+				w.value(d);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer FLOAT_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (float f : (float[]) v) {
+				a.addNumber(f);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (float f : (float[]) v) {
+				w.value(f);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer BOOLEAN_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (boolean b : (boolean[]) v) {
+				a.addBoolean(b);
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (boolean b : (boolean[]) v) {
+				w.value(b);
+			}
+			w.endArray();
+		}
+	};
+
+	private static final Serializer CHAR_ARRAY = new Serializer() {
+		@Override
+		public Object toJson(Object v) {
+			JsonArray a = new JsonArray();
+			for (char c : (char[]) v) {
+				a.addString(String.valueOf(c));
+			}
+			return a;
+		}
+
+		@Override
+		public void write(JsonStreamWriter w, Object v) {
+			w.startArray();
+			for (char c : (char[]) v) {
+				w.value(String.valueOf(c));
+			}
+			w.endArray();
+		}
+	};
+
+	private static JsonObject properties(PropertyContainer c) {
+		JsonObject data = new JsonObject();
+		for (String key : c.getPropertyKeys()) {
+			data.putValue(key, toJson(c.getProperty(key)));
+		}
+		return data;
+	}
+
+	private static void writeProperties(JsonStreamWriter w, PropertyContainer c) {
+		w.startObject();
+		for (String key : c.getPropertyKeys()) {
+			w.fieldName(key);
+			write(w, c.getProperty(key));
+		}
+		w.endObject();
+	}
+
+}
@@ -19,17 +19,39 @@
 package fr.wseduc.neo4j;
 
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 public interface GraphDatabase {
 
-	void execute(String query, JsonObject params, Handler<JsonObject> handler);
+	/**
+	 * With columnar, each result is replied as its columns and its rows as arrays
+	 * instead of an array of objects keyed by column.
+	 */
+	void execute(String query, JsonObject params, boolean columnar, Handler<JsonObject> handler);
 
-	void executeBatch(JsonArray queries, Handler<JsonObject> handler);
+	void executeBatch(JsonArray queries, boolean columnar, Handler<JsonObject> handler);
 
 	void executeTransaction(JsonArray statements, Integer transactionId,
-							boolean commit, Handler<JsonObject> handler);
+							boolean commit, boolean columnar, Handler<JsonObject> handler);
+
+	/**
+	 * Same as execute, but the whole reply, status included, is handed over already encoded
+	 * as JSON. Errors are handed to the error handler as usual.
+	 */
+	void executeEncoded(String query, JsonObject params, boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler);
+
+	void executeBatchEncoded(JsonArray queries, boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler);
+
+	void executeTransactionEncoded(JsonArray statements, Integer transactionId, boolean commit,
+			boolean columnar, Handler<Buffer> handler, Handler<JsonObject> errorHandler);
+
+	ResultCursor executeCursor(String query, JsonObject params);
+
+	ResultCursor executeTransactionCursor(JsonArray statements, Integer transactionId, boolean commit);
 
 	void resetTransactionTimeout(int transactionId, Handler<JsonObject> handler);
 
@@ -37,6 +59,25 @@ public interface GraphDatabase {
 
 	void unmanagedExtension(String method, String uri, String body, Handler<JsonObject> handler);
 
+	/**
+	 * Returns this database, or a view of it which sends reads to the master
+	 * when they are otherwise sent to the slaves.
+	 */
+	GraphDatabase masterOnly();
+
+	/**
+	 * Returns this database, or a view of it which sends its requests in the given priority lane.
+	 */
+	GraphDatabase withPriority(String priority);
+
+	/**
+	 * Returns this database, or a view of it whose execute, executeBatch and executeTransaction fail
+	 * with a TimeoutException, and are cancelled, once timeout milliseconds have elapsed since this call.
+	 */
+	GraphDatabase withTimeout(long timeout);
+
+	JsonObject stats();
+
 	void close();
 
 }
@@ -0,0 +1,131 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.wseduc.neo4j.exception.ExceptionUtils;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Collects single write statements during a short window and commits them
+ * in one transaction. When a statement of the group fails, statements are replayed one by one
+ * so a bad statement only fails its own sender. Other failures (transport, timeout, rejection) are
+ * replied to every sender, as the group may have been committed.
+ */
+public class GroupCommit {
+
+	private final Vertx vertx;
+	private final GraphDatabase db;
+	private final long maxDelay;
+	private final int maxStatements;
+	private List<Entry> pending = new ArrayList<>();
+	private long timerId = -1;
+
+	private static final class Entry {
+		private final String query;
+		private final JsonObject params;
+		private final Handler<JsonObject> handler;
+
+		private Entry(String query, JsonObject params, Handler<JsonObject> handler) {
+			this.query = query;
+			this.params = params;
+			this.handler = handler;
+		}
+	}
+
+	public GroupCommit(Vertx vertx, GraphDatabase db, JsonObject config) {
+		this.vertx = vertx;
+		this.db = db;
+		this.maxDelay = Math.max(config.getLong("max-delay", 5l), 1l);
+		this.maxStatements = Math.max(config.getInteger("max-statements", 100), 1);
+	}
+
+	public void execute(String query, JsonObject params, Handler<JsonObject> handler) {
+		pending.add(new Entry(query, params, handler));
+		if (pending.size() >= maxStatements) {
+			flush();
+		} else if (timerId < 0) {
+			timerId = vertx.setTimer(maxDelay, new Handler<Long>() {
+				@Override
+				public void handle(Long event) {
+					timerId = -1;
+					flush();
+				}
+			});
+		}
+	}
+
+	public void flush() {
+		if (timerId >= 0) {
+			vertx.cancelTimer(timerId);
+			timerId = -1;
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+		final List<Entry> group = pending;
+		pending = new ArrayList<>();
+		if (group.size() == 1) {
+			replay(group);
+			return;
+		}
+		JsonArray statements = new JsonArray();
+		for (Entry e : group) {
+			statements.addObject(new JsonObject()
+					.putString("statement", e.query)
+					.putObject("parameters", (e.params != null) ? e.params : new JsonObject())
+					.putArray("resultDataContents", new JsonArray().add("rest")));
+		}
+		db.executeTransaction(statements, null, true, false, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				JsonArray results = res.getArray("results");
+				if (res.getString("message") != null && ExceptionUtils.isStatementError(res)) {
+					replay(group);
+					return;
+				}
+				if (res.getString("message") != null || results == null || results.size() != group.size()) {
+					// the group may have been committed : sending its statements again could apply them twice
+					JsonObject error = (res.getString("message") != null) ? res :
+							new JsonObject().putString("message", "Invalid group commit result.");
+					for (Entry e : group) {
+						e.handler.handle(error.copy());
+					}
+					return;
+				}
+				for (int i = 0; i < group.size(); i++) {
+					JsonArray result = results.get(i);
+					group.get(i).handler.handle(new JsonObject().putArray("result", result));
+				}
+			}
+		});
+	}
+
+	private void replay(List<Entry> group) {
+		for (Entry e : group) {
+			db.execute(e.query, e.params, false, e.handler);
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+
+/**
+ * Push based JSON tokenizer. Chunks are fed as they arrive from the network
+ * and tokens are reported to the listener without ever holding the whole document.
+ */
+public class JsonStreamParser implements Handler<Buffer> {
+
+	public interface Listener {
+
+		void startObject();
+
+		void endObject();
+
+		void startArray();
+
+		void endArray();
+
+		void fieldName(String name);
+
+		void value(Object value);
+
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte OBJECT = 'o';
+	private static final byte ARRAY = 'a';
+
+	private static final int VALUE = 0;
+	private static final int KEY = 1;
+	private static final int COLON = 2;
+	private static final int NEXT = 3;
+	private static final int STRING = 4;
+	private static final int STRING_ESCAPE = 5;
+	private static final int STRING_UNICODE = 6;
+	private static final int NUMBER = 7;
+	private static final int LITERAL = 8;
+	private static final int DONE = 9;
+
+	private final Listener listener;
+	private int state = VALUE;
+	private boolean emptyContainer;
+	private boolean key;
+	private byte[] containers = new byte[16];
+	private int depth;
+	private byte[] raw = new byte[64];
+	private int rawLength;
+	private final StringBuilder text = new StringBuilder();
+	private int unicode;
+	private int unicodeDigits;
+
+	public JsonStreamParser(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void handle(Buffer buffer) {
+		feed(buffer.getBytes());
+	}
+
+	public void feed(byte[] bytes) {
+		feed(bytes, 0, bytes.length);
+	}
+
+	public void feed(byte[] bytes, int offset, int length) {
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (!consume(bytes[i])) {
+				i--;
+			}
+		}
+	}
+
+	public void end() {
+		if (state == NUMBER || state == LITERAL) {
+			finishToken();
+		}
+		if (state != DONE) {
+			throw new DecodeException("Unexpected end of JSON input.");
+		}
+	}
+
+	private boolean consume(byte c) {
+		switch (state) {
+			case STRING :
+				if (c == '"') {
+					finishString();
+				} else if (c == '\\') {
+					flushRaw();
+					state = STRING_ESCAPE;
+				} else {
+					appendRaw(c);
+				}
+				return true;
+			case STRING_ESCAPE :
+				escape(c);
+				return true;
+			case STRING_UNICODE :
+				unicode = (unicode << 4) + hex(c);
+				if (++unicodeDigits == 4) {
+					text.append((char) unicode);
+					state = STRING;
+				}
+				return true;
+			case NUMBER :
+				if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+					text.append((char) c);
+					return true;
+				}
+				finishToken();
+				return false;
+			case LITERAL :
+				if (c >= 'a' && c <= 'z') {
+					text.append((char) c);
+					return true;
+				}
+				finishToken();
+				return false;
+		}
+		if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+			return true;
+		}
+		switch (state) {
+			case VALUE :
+				value(c);
+				break;
+			case KEY :
+				if (c == '"') {
+					key = true;
+					state = STRING;
+				} else if (c == '}' && emptyContainer) {
+					close(OBJECT);
+				} else {
+					unexpected(c);
+				}
+				break;
+			case COLON :
+				if (c != ':') {
+					unexpected(c);
+				}
+				emptyContainer = false;
+				state = VALUE;
+				break;
+			case NEXT :
+				if (c == ',') {
+					state = (containers[depth - 1] == OBJECT) ? KEY : VALUE;
+				} else if (c == ']') {
+					close(ARRAY);
+				} else if (c == '}') {
+					close(OBJECT);
+				} else {
+					unexpected(c);
+				}
+				break;
+			default :
+				unexpected(c);
+		}
+		return true;
+	}
+
+	private void value(byte c) {
+		if (c == '{') {
+			open(OBJECT);
+			state = KEY;
+			listener.startObject();
+		} else if (c == '[') {
+			open(ARRAY);
+			state = VALUE;
+			listener.startArray();
+		} else if (c == ']' && emptyContainer) {
+			close(ARRAY);
+		} else if (c == '"') {
+			key = false;
+			state = STRING;
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			text.append((char) c);
+			state = NUMBER;
+		} else if (c == 't' || c == 'f' || c == 'n') {
+			text.append((char) c);
+			state = LITERAL;
+		} else {
+			unexpected(c);
+		}
+	}
+
+	private void open(byte type) {
+		if (depth == containers.length) {
+			containers = Arrays.copyOf(containers, depth * 2);
+		}
+		containers[depth++] = type;
+		emptyContainer = true;
+	}
+
+	private void close(byte type) {
+		if (depth == 0 || containers[depth - 1] != type) {
+			unexpected(type == OBJECT ? (byte) '}' : (byte) ']');
+		}
+		depth--;
+		emptyContainer = false;
+		if (type == OBJECT) {
+			listener.endObject();
+		} else {
+			listener.endArray();
+		}
+		afterValue();
+	}
+
+	private void afterValue() {
+		emptyContainer = false;
+		state = (depth == 0) ? DONE : NEXT;
+	}
+
+	private void escape(byte c) {
+		state = STRING;
+		switch (c) {
+			case '"' :
+			case '\\' :
+			case '/' :
+				text.append((char) c);
+				break;
+			case 'b' :
+				text.append('\b');
+				break;
+			case 'f' :
+				text.append('\f');
+				break;
+			case 'n' :
+				text.append('\n');
+				break;
+			case 'r' :
+				text.append('\r');
+				break;
+			case 't' :
+				text.append('\t');
+				break;
+			case 'u' :
+				unicode = 0;
+				unicodeDigits = 0;
+				state = STRING_UNICODE;
+				break;
+			default :
+				unexpected(c);
+		}
+	}
+
+	private int hex(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		throw new DecodeException("Invalid unicode escape character : " + (char) c);
+	}
+
+	private void appendRaw(byte c) {
+		if (rawLength == raw.length) {
+			raw = Arrays.copyOf(raw, rawLength * 2);
+		}
+		raw[rawLength++] = c;
+	}
+
+	private void flushRaw() {
+		if (rawLength > 0) {
+			text.append(new String(raw, 0, rawLength, UTF8));
+			rawLength = 0;
+		}
+	}
+
+	private String takeText() {
+		String s = text.toString();
+		text.setLength(0);
+		return s;
+	}
+
+	private void finishString() {
+		flushRaw();
+		String s = takeText();
+		if (key) {
+			state = COLON;
+			listener.fieldName(s);
+		} else {
+			afterValue();
+			listener.value(s);
+		}
+	}
+
+	private void finishToken() {
+		final boolean literal = (state == LITERAL);
+		String s = takeText();
+		afterValue();
+		listener.value(literal ? literal(s) : number(s));
+	}
+
+	private Object literal(String s) {
+		switch (s) {
+			case "true" :
+				return Boolean.TRUE;
+			case "false" :
+				return Boolean.FALSE;
+			case "null" :
+				return null;
+			default :
+				throw new DecodeException("Invalid literal : " + s);
+		}
+	}
+
+	private Number number(String s) {
+		try {
+			if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+				return Double.parseDouble(s);
+			}
+			long l = Long.parseLong(s);
+			if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+				return (int) l;
+			}
+			return l;
+		} catch (NumberFormatException e) {
+			try {
+				return Double.parseDouble(s);
+			} catch (NumberFormatException e1) {
+				throw new DecodeException("Invalid number : " + s);
+			}
+		}
+	}
+
+	private void unexpected(byte c) {
+		throw new DecodeException("Unexpected character '" + (char) c + "' in JSON input.");
+	}
+
+}
@@ -0,0 +1,288 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * Push based JSON generator, the counterpart of {@link JsonStreamParser}.
+ * Tokens are written as UTF-8 into a growable byte array which is kept between
+ * documents, so a result can be encoded without building the JsonObject tree.
+ */
+public class JsonStreamWriter {
+
+	private static final int INITIAL_SIZE = 8192;
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+	private byte[] bytes = new byte[INITIAL_SIZE];
+	private int length;
+	private boolean comma;
+
+	/**
+	 * Starts a new document. The array is dropped when a large document made it grow
+	 * beyond 1 MB, so one huge result does not stay pinned to the writer.
+	 */
+	public JsonStreamWriter reset() {
+		if (bytes.length > MAX_RETAINED_SIZE) {
+			bytes = new byte[INITIAL_SIZE];
+		}
+		length = 0;
+		comma = false;
+		return this;
+	}
+
+	public JsonStreamWriter startObject() {
+		separator();
+		write((byte) '{');
+		comma = false;
+		return this;
+	}
+
+	public JsonStreamWriter endObject() {
+		write((byte) '}');
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter startArray() {
+		separator();
+		write((byte) '[');
+		comma = false;
+		return this;
+	}
+
+	public JsonStreamWriter endArray() {
+		write((byte) ']');
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter fieldName(String name) {
+		separator();
+		string(name);
+		write((byte) ':');
+		comma = false;
+		return this;
+	}
+
+	public JsonStreamWriter nullValue() {
+		separator();
+		write(NULL);
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(String s) {
+		if (s == null) {
+			return nullValue();
+		}
+		separator();
+		string(s);
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(boolean b) {
+		separator();
+		write(b ? TRUE : FALSE);
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(long l) {
+		separator();
+		number(l);
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(double d) {
+		if (Double.isNaN(d) || Double.isInfinite(d)) {
+			// quoted, as Jackson does for the JsonObject tree
+			return value(Double.toString(d));
+		}
+		separator();
+		ascii(Double.toString(d));
+		comma = true;
+		return this;
+	}
+
+	public JsonStreamWriter value(float f) {
+		if (Float.isNaN(f) || Float.isInfinite(f)) {
+			return value(Float.toString(f));
+		}
+		return raw(Float.toString(f));
+	}
+
+	public JsonStreamWriter value(Number n) {
+		if (n == null) {
+			return nullValue();
+		} else if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+			return value(n.longValue());
+		} else if (n instanceof Double) {
+			return value(n.doubleValue());
+		} else if (n instanceof Float) {
+			return value(n.floatValue());
+		}
+		return raw(n.toString());
+	}
+
+	public int size() {
+		return length;
+	}
+
+	/**
+	 * Copies the document written since the last reset.
+	 */
+	public Buffer toBuffer() {
+		return new Buffer(Arrays.copyOf(bytes, length));
+	}
+
+	private JsonStreamWriter raw(String number) {
+		separator();
+		ascii(number);
+		comma = true;
+		return this;
+	}
+
+	private void separator() {
+		if (comma) {
+			write((byte) ',');
+		}
+	}
+
+	private void number(long l) {
+		if (l == Long.MIN_VALUE) {
+			write(MIN_LONG);
+			return;
+		}
+		if (l < 0) {
+			write((byte) '-');
+			l = -l;
+		}
+		int digits = 1;
+		for (long p = 10; digits < 19 && l >= p; p *= 10) {
+			digits++;
+		}
+		ensure(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			bytes[i] = (byte) ('0' + (l % 10));
+			l /= 10;
+		}
+		length += digits;
+	}
+
+	private void ascii(String s) {
+		final int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			bytes[length++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void string(String s) {
+		final int n = s.length();
+		// worst case is 6 bytes per char for escaped control characters
+		ensure(n * 3 + 2);
+		bytes[length++] = '"';
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c == '"' || c == '\\') {
+					bytes[length++] = '\\';
+					bytes[length++] = (byte) c;
+				} else if (c < 0x20) {
+					ensure(6 + (n - i) * 3);
+					escape(c);
+				} else {
+					bytes[length++] = (byte) c;
+				}
+			} else if (c < 0x800) {
+				bytes[length++] = (byte) (0xc0 | (c >> 6));
+				bytes[length++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				bytes[length++] = (byte) (0xf0 | (cp >> 18));
+				bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired, replaced as String.getBytes does
+				bytes[length++] = '?';
+			} else {
+				bytes[length++] = (byte) (0xe0 | (c >> 12));
+				bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[length++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		write((byte) '"');
+	}
+
+	private void escape(char c) {
+		bytes[length++] = '\\';
+		switch (c) {
+			case '\n' :
+				bytes[length++] = 'n';
+				break;
+			case '\r' :
+				bytes[length++] = 'r';
+				break;
+			case '\t' :
+				bytes[length++] = 't';
+				break;
+			case '\b' :
+				bytes[length++] = 'b';
+				break;
+			case '\f' :
+				bytes[length++] = 'f';
+				break;
+			default :
+				bytes[length++] = 'u';
+				bytes[length++] = '0';
+				bytes[length++] = '0';
+				bytes[length++] = HEX[c >> 4];
+				bytes[length++] = HEX[c & 0xf];
+		}
+	}
+
+	private void write(byte b) {
+		ensure(1);
+		bytes[length++] = b;
+	}
+
+	private void write(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, bytes, length, b.length);
+		length += b.length;
+	}
+
+	private void ensure(int n) {
+		if (length + n > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Log-linear latency histogram in microseconds (16 sub-buckets per power of two, about 6 % precision).
+ * Recording is lock-free and allocation-free : an increment of a bucket counter.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKETS << 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		final long micros = Math.max(nanos / 1000, 0);
+		buckets.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros));
+	}
+
+	static int index(long micros) {
+		if (micros < LINEAR_LIMIT) {
+			return (int) micros;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+	}
+
+	static long value(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		final long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return lowest + (1l << shift) - 1;
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * @return the highest value, in microseconds, of the bucket holding the percentile
+	 */
+	public long percentile(double percentile) {
+		final long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max((long) Math.ceil(total * percentile), 1);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(value(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public JsonObject snapshot() {
+		final long total = count.get();
+		return new JsonObject()
+				.putNumber("count", total)
+				.putNumber("mean", (total > 0) ? millis(sum.get() / total) : 0d)
+				.putNumber("p50", millis(percentile(0.5)))
+				.putNumber("p90", millis(percentile(0.9)))
+				.putNumber("p99", millis(percentile(0.99)))
+				.putNumber("p999", millis(percentile(0.999)))
+				.putNumber("max", millis(max.get()));
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000d;
+	}
+
+}
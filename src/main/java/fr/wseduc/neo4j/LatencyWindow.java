@@ -0,0 +1,59 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last latencies in a ring buffer and gives an estimation of a percentile,
+ * computed again every time the buffer has been filled by a quarter.
+ */
+public class LatencyWindow {
+
+	private final long[] samples;
+	private final double percentile;
+	private int next;
+	private int count;
+	private int sinceUpdate;
+	private volatile long value = -1;
+
+	public LatencyWindow(int size, double percentile) {
+		this.samples = new long[size];
+		this.percentile = percentile;
+	}
+
+	public synchronized void add(long latency) {
+		samples[next] = latency;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+		if (++sinceUpdate >= samples.length / 4) {
+			sinceUpdate = 0;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			value = sorted[Math.min((int) (count * percentile), count - 1)];
+		}
+	}
+
+	public long value() {
+		return value;
+	}
+
+}
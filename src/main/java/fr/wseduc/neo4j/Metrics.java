@@ -0,0 +1,104 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Per action latencies, in flight requests and errors by type. Every action is registered
+ * at construction so recording only reads maps and updates counters.
+ */
+public class Metrics {
+
+	private final Map<String, ActionMetrics> actions = new HashMap<>();
+	private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+	private final long startTime = System.currentTimeMillis();
+
+	private static final class ActionMetrics {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong errors = new AtomicLong();
+	}
+
+	public Metrics(String... actionNames) {
+		for (String action : actionNames) {
+			actions.put(action, new ActionMetrics());
+		}
+	}
+
+	public void started(String action) {
+		ActionMetrics a = actions.get(action);
+		if (a != null) {
+			a.inFlight.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param errorType null if the action succeeded
+	 */
+	public void ended(String action, long startNanos, String errorType) {
+		ActionMetrics a = actions.get(action);
+		if (a == null) {
+			return;
+		}
+		a.inFlight.decrementAndGet();
+		a.latency.record(System.nanoTime() - startNanos);
+		if (errorType != null) {
+			a.errors.incrementAndGet();
+			AtomicLong count = errors.get(errorType);
+			if (count == null) {
+				AtomicLong c = errors.putIfAbsent(errorType, count = new AtomicLong());
+				if (c != null) {
+					count = c;
+				}
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	public JsonObject snapshot() {
+		JsonObject a = new JsonObject();
+		for (Map.Entry<String, ActionMetrics> e : actions.entrySet()) {
+			ActionMetrics m = e.getValue();
+			if (m.latency.count() == 0 && m.inFlight.get() == 0) {
+				continue;
+			}
+			a.putObject(e.getKey(), new JsonObject()
+					.putNumber("inFlight", m.inFlight.get())
+					.putNumber("errors", m.errors.get())
+					.putObject("latency", m.latency.snapshot()));
+		}
+		JsonObject errorTypes = new JsonObject();
+		for (Map.Entry<String, AtomicLong> e : errors.entrySet()) {
+			errorTypes.putNumber(e.getKey(), e.getValue().get());
+		}
+		return new JsonObject()
+				.putNumber("uptime", System.currentTimeMillis() - startTime)
+				.putObject("actions", a)
+				.putObject("errors", errorTypes);
+	}
+
+}
@@ -18,20 +18,34 @@
 
 package fr.wseduc.neo4j;
 
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Lock;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.TopLevelTransaction;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
@@ -42,9 +56,24 @@ public class Neo4jEmbedded implements GraphDatabase {
 
 	private final GraphDatabaseService gdb;
 	private final ExecutionEngine engine;
+	private final ThreadToStatementContextBridge bridge;
 	private final Logger logger;
+	private final Vertx vertx;
+	private final EmbeddedExecutor executor;
+	private final AtomicLong statements;
+	private final AtomicLong rows;
+	private final ScheduledExecutorService timeouts;
+	private final long timeout;
+	private final long deadline;
+	private static final ThreadLocal<Cancellation> cancellations = new ThreadLocal<>();
+	private static final ThreadLocal<JsonStreamWriter> writers = new ThreadLocal<JsonStreamWriter>() {
+		@Override
+		protected JsonStreamWriter initialValue() {
+			return new JsonStreamWriter();
+		}
+	};
 
-	public Neo4jEmbedded(JsonObject config, Logger logger) {
+	public Neo4jEmbedded(JsonObject config, Vertx vertx, Logger logger) {
 		GraphDatabaseBuilder gdbb = new GraphDatabaseFactory()
 		.newEmbeddedDatabaseBuilder(config.getString("datastore-path"));
 		JsonObject neo4jConfig = config.getObject("neo4j");
@@ -84,7 +113,198 @@ public class Neo4jEmbedded implements GraphDatabase {
 			}
 		}
 		engine = new ExecutionEngine(gdb);
+		bridge = ((GraphDatabaseAPI) gdb).getDependencyResolver()
+				.resolveDependency(ThreadToStatementContextBridge.class);
 		this.logger = logger;
+		this.vertx = vertx;
+		JsonObject executorConfig = config.getObject("executor", new JsonObject());
+		if (executorConfig.getBoolean("enabled", true)) {
+			executor = new EmbeddedExecutor(executorConfig);
+		} else {
+			executor = null;
+		}
+		this.statements = new AtomicLong();
+		this.rows = new AtomicLong();
+		this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "neo4j-embedded-timeouts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timeout = 0;
+		this.deadline = 0;
+	}
+
+	/**
+	 * View sharing the database and the executor of the given one, whose queries are terminated
+	 * once timeout milliseconds have elapsed.
+	 */
+	private Neo4jEmbedded(Neo4jEmbedded db, long timeout) {
+		this.gdb = db.gdb;
+		this.engine = db.engine;
+		this.bridge = db.bridge;
+		this.logger = db.logger;
+		this.vertx = db.vertx;
+		this.executor = db.executor;
+		this.statements = db.statements;
+		this.rows = db.rows;
+		this.timeouts = db.timeouts;
+		this.timeout = timeout;
+		this.deadline = System.currentTimeMillis() + timeout;
+	}
+
+	/**
+	 * Keeps the transaction and the result iterator open between fetches.
+	 * The query is run by the first fetch, and each page is read on the lane of the query
+	 * like the other queries. With a timeout, the transaction is terminated when the deadline passes
+	 * while a page is read, or when a page is fetched after it. The transaction is unbound from the worker thread after each page
+	 * and bound again to the thread which handles the next fetch.
+	 */
+	private abstract class EmbeddedCursor implements ResultCursor {
+
+		private final boolean write;
+		private boolean opened;
+		private boolean closed;
+		private TopLevelTransaction tx;
+		private ExecutionResult result;
+		private EmbeddedSerializers.Row row;
+		private JsonObject extra;
+
+		private EmbeddedCursor(boolean write) {
+			this.write = write;
+		}
+
+		/**
+		 * Runs the statements in the transaction bound to the current thread.
+		 * @param extra fields of the first page
+		 * @return the result whose rows are paged
+		 */
+		protected abstract ExecutionResult open(JsonObject extra);
+
+		@Override
+		public void fetch(final int size, Handler<JsonObject> handler) {
+			dispatch(write, handler, new Callable<JsonObject>() {
+				@Override
+				public JsonObject call() {
+					return page(size);
+				}
+			});
+		}
+
+		private synchronized JsonObject page(int size) {
+			if (closed) {
+				return new JsonObject().putString("message", "Cursor closed.");
+			}
+			JsonObject res = new JsonObject();
+			try {
+				if (!opened) {
+					opened = true;
+					Transaction t = gdb.beginTx();
+					if (!(t instanceof TopLevelTransaction)) {
+						t.close();
+						throw new IllegalStateException("Cursor requires a top level transaction.");
+					}
+					tx = (TopLevelTransaction) t;
+					attach();
+					extra = new JsonObject();
+					result = open(extra);
+					row = (result != null) ? new EmbeddedSerializers.Row(result.columns()) : null;
+				} else if (tx != null) {
+					bridge.bindTransactionToCurrentThread(tx);
+					attach();
+				}
+				if (extra != null) {
+					res = extra;
+					extra = null;
+				}
+				if (tx == null) {
+					return res.putArray("result", new JsonArray()).putBoolean("hasMore", false);
+				}
+				JsonArray page = new JsonArray();
+				while (page.size() < size && result != null && result.hasNext()) {
+					page.addObject(row.toJson(result.next()));
+				}
+				rows.addAndGet(page.size());
+				boolean hasMore = result != null && result.hasNext();
+				if (hasMore) {
+					detach();
+					bridge.unbindTransactionFromCurrentThread();
+				} else {
+					finish(true);
+				}
+				return res.putArray("result", page).putBoolean("hasMore", hasMore);
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+				if (tx != null) {
+					finish(false);
+				}
+				return ExceptionUtils.exceptionToJson(e);
+			}
+		}
+
+		/**
+		 * Ends the transaction on the lane of the query, or on the calling thread if the lane is saturated.
+		 */
+		@Override
+		public void close() {
+			final Runnable close = new Runnable() {
+				@Override
+				public void run() {
+					synchronized (EmbeddedCursor.this) {
+						closed = true;
+						if (tx != null) {
+							bridge.bindTransactionToCurrentThread(tx);
+							finish(true);
+						}
+					}
+				}
+			};
+			if (executor == null || !executor.execute(write, close)) {
+				close.run();
+			}
+		}
+
+		/**
+		 * Lets the timeout of the current fetch terminate the transaction, until the page is read.
+		 */
+		private void attach() {
+			Cancellation cancellation = cancellations.get();
+			if (cancellation != null) {
+				cancellation.attach(tx);
+			}
+		}
+
+		private void detach() {
+			Cancellation cancellation = cancellations.get();
+			if (cancellation != null) {
+				cancellation.detach();
+			}
+		}
+
+		private void finish(boolean success) {
+			detach();
+			try {
+				if (result != null) {
+					result.close();
+				}
+				if (success) {
+					tx.success();
+				} else {
+					tx.failure();
+				}
+				tx.close();
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+			} finally {
+				tx = null;
+				if (bridge.hasTransaction()) {
+					bridge.unbindTransactionFromCurrentThread();
+				}
+			}
+		}
+
 	}
 
 	private static void registerShutdownHook( final GraphDatabaseService graphDb )	{
@@ -100,77 +320,335 @@ public class Neo4jEmbedded implements GraphDatabase {
 	}
 
 	@Override
-	public void execute(String query, JsonObject params, Handler<JsonObject> handler) {
-		ExecutionResult result;
-		try (Transaction tx = gdb.beginTx()) {
-			if (params != null){
-				result = engine.execute(query, params.toMap());
-			} else {
-				result = engine.execute(query);
+	public void execute(final String query, final JsonObject params, final boolean columnar,
+			Handler<JsonObject> handler) {
+		dispatch(CypherClassifier.isWrite(query), handler, new Callable<JsonObject>() {
+			@Override
+			public JsonObject call() {
+				return doExecute(query, params, columnar);
 			}
-			JsonObject json = new JsonObject().putArray("result",toJson(result));
+		});
+	}
+
+	private JsonObject doExecute(String query, JsonObject params, boolean columnar) {
+		ExecutionResult result;
+		try (Transaction tx = beginTx()) {
+			result = run(query, params);
+			JsonObject json = columnar ? toColumnar(result) : new JsonObject().putArray("result",toJson(result));
 			tx.success();
-			handler.handle(json);
+			return json;
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
-			handler.handle(ExceptionUtils.exceptionToJson(e));
+			return ExceptionUtils.exceptionToJson(e);
 		}
 	}
 
 	@Override
-	public void executeBatch(JsonArray queries, Handler<JsonObject> handler) {
+	public void executeBatch(final JsonArray queries, final boolean columnar, Handler<JsonObject> handler) {
+		dispatch(hasWrite(queries, "query"), handler, new Callable<JsonObject>() {
+			@Override
+			public JsonObject call() {
+				return doExecuteBatch(queries, columnar);
+			}
+		});
+	}
+
+	private JsonObject doExecuteBatch(JsonArray queries, boolean columnar) {
 		ExecutionResult result;
-		try (Transaction tx = gdb.beginTx()) {
+		try (Transaction tx = beginTx()) {
 			JsonArray results = new JsonArray();
 			int i = 0;
 			for (Object q: queries) {
 				JsonObject qr = (JsonObject) q;
 				String query = qr.getString("query");
 				JsonObject params = qr.getObject("params");
-				if (params != null){
-					result = engine.execute(query, params.toMap());
-				} else {
-					result = engine.execute(query);
-				}
-				results.addObject(new JsonObject().putArray("result", toJson(result))
-						.putNumber("idx", i++));
+				result = run(query, params);
+				JsonObject r = columnar ? toColumnar(result) : new JsonObject().putArray("result", toJson(result));
+				results.addObject(r.putNumber("idx", i++));
 			}
 			JsonObject json = new JsonObject().putArray("results", results);
 			tx.success();
-			handler.handle(json);
+			return json;
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
-			handler.handle(ExceptionUtils.exceptionToJson(e));
+			return ExceptionUtils.exceptionToJson(e);
 		}
 	}
 
 	@Override
-	public void executeTransaction(JsonArray statements, Integer transactionId,
-			boolean commit, Handler<JsonObject> handler) {
+	public void executeTransaction(final JsonArray statements, Integer transactionId,
+			final boolean commit, final boolean columnar, Handler<JsonObject> handler) {
+		dispatch(hasWrite(statements, "statement"), handler, new Callable<JsonObject>() {
+			@Override
+			public JsonObject call() {
+				return doExecuteTransaction(statements, commit, columnar);
+			}
+		});
+	}
+
+	private JsonObject doExecuteTransaction(JsonArray statements, boolean commit, boolean columnar) {
 		ExecutionResult result;
-		try (Transaction tx = gdb.beginTx()) {
+		JsonObject json;
+		try (Transaction tx = beginTx()) {
 			JsonArray results = new JsonArray();
 			for (Object o : statements) {
 				if (!(o instanceof JsonObject)) continue;
 				JsonObject qr = (JsonObject) o;
 				String statement = qr.getString("statement");
 				JsonObject params = qr.getObject("parameters");
-				if (params != null){
-					result = engine.execute(statement, params.toMap());
+				result = run(statement, params);
+				if (columnar) {
+					results.addObject(toColumnar(result));
 				} else {
-					result = engine.execute(statement);
+					results.addArray(toJson(result));
 				}
-				results.addArray(toJson(result));
 			}
 			tx.success();
-			JsonObject json = new JsonObject().putArray("results", results);
+			json = new JsonObject().putArray("results", results);
 			if (!commit) {
 				json.putNumber("transactionId", 0);
 			}
-			handler.handle(json);
 		} catch (Exception e) {
-			handler.handle(ExceptionUtils.exceptionToJson(e));
+			return ExceptionUtils.exceptionToJson(e);
 		}
+		return json;
+	}
+
+	@Override
+	public void executeEncoded(final String query, final JsonObject params, final boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		dispatch(CypherClassifier.isWrite(query), handler, errorHandler, new Callable<Buffer>() {
+			@Override
+			public Buffer call() {
+				JsonStreamWriter w = writers.get().reset();
+				try (Transaction tx = beginTx()) {
+					ExecutionResult result = run(query, params);
+					w.startObject().fieldName("status").value("ok");
+					writeResult(w, result, columnar);
+					w.endObject();
+					tx.success();
+				}
+				return w.toBuffer();
+			}
+		});
+	}
+
+	@Override
+	public void executeBatchEncoded(final JsonArray queries, final boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		dispatch(hasWrite(queries, "query"), handler, errorHandler, new Callable<Buffer>() {
+			@Override
+			public Buffer call() {
+				JsonStreamWriter w = writers.get().reset();
+				try (Transaction tx = beginTx()) {
+					w.startObject().fieldName("status").value("ok").fieldName("results").startArray();
+					int i = 0;
+					for (Object q: queries) {
+						JsonObject qr = (JsonObject) q;
+						ExecutionResult result = run(qr.getString("query"), qr.getObject("params"));
+						w.startObject();
+						writeResult(w, result, columnar);
+						w.fieldName("idx").value(i++).endObject();
+					}
+					w.endArray().endObject();
+					tx.success();
+				}
+				return w.toBuffer();
+			}
+		});
+	}
+
+	@Override
+	public void executeTransactionEncoded(final JsonArray statements, Integer transactionId,
+			final boolean commit, final boolean columnar, Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		dispatch(hasWrite(statements, "statement"), handler, errorHandler, new Callable<Buffer>() {
+			@Override
+			public Buffer call() {
+				JsonStreamWriter w = writers.get().reset();
+				try (Transaction tx = beginTx()) {
+					w.startObject().fieldName("status").value("ok").fieldName("results").startArray();
+					for (Object o : statements) {
+						if (!(o instanceof JsonObject)) continue;
+						JsonObject qr = (JsonObject) o;
+						ExecutionResult result = run(qr.getString("statement"), qr.getObject("parameters"));
+						if (columnar) {
+							w.startObject();
+							writeResult(w, result, true);
+							w.endObject();
+						} else {
+							writeRows(w, result);
+						}
+					}
+					w.endArray();
+					if (!commit) {
+						w.fieldName("transactionId").value(0);
+					}
+					w.endObject();
+					tx.success();
+				}
+				return w.toBuffer();
+			}
+		});
+	}
+
+	/**
+	 * Begins a transaction which is terminated if the query it runs for times out.
+	 */
+	private Transaction beginTx() {
+		Transaction tx = gdb.beginTx();
+		Cancellation cancellation = cancellations.get();
+		return (cancellation != null) ? cancellation.bind(tx) : tx;
+	}
+
+	private static boolean hasWrite(JsonArray statements, String field) {
+		for (Object o : statements) {
+			if (o instanceof JsonObject && CypherClassifier.isWrite(((JsonObject) o).getString(field))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the task on the read or write lane of the executor and replies on the context
+	 * of the caller, or runs it on the calling thread when the executor is disabled.
+	 */
+	private void dispatch(boolean write, Handler<JsonObject> handler, Callable<JsonObject> task) {
+		dispatch(write, handler, handler, task);
+	}
+
+	/**
+	 * A task which throws is replied to the error handler, as is a task refused by a saturated lane.
+	 */
+	private <T> void dispatch(boolean write, final Handler<T> handler, final Handler<JsonObject> errorHandler,
+			final Callable<T> task) {
+		final Cancellation cancellation = cancellation();
+		if (executor == null) {
+			run(null, cancellation, task, handler, errorHandler);
+			return;
+		}
+		final Context context = (vertx != null) ? vertx.currentContext() : null;
+		boolean accepted = executor.execute(write, new Runnable() {
+			@Override
+			public void run() {
+				Neo4jEmbedded.this.run(context, cancellation, task, handler, errorHandler);
+			}
+		});
+		if (!accepted) {
+			if (cancellation != null) {
+				cancellation.timer.cancel(false);
+			}
+			errorHandler.handle(new JsonObject().putString("message", "busy")
+					.putString("exception", "EmbeddedExecutorBusy"));
+		}
+	}
+
+	/**
+	 * @return the cancellation of a task of this view, terminated by the timeouts thread at the deadline,
+	 * or null without timeout. The timer does not run on the context of the caller,
+	 * which runs the task itself when the executor is disabled.
+	 */
+	private Cancellation cancellation() {
+		if (timeout <= 0) {
+			return null;
+		}
+		final Cancellation cancellation = new Cancellation();
+		cancellation.timer = timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancellation.cancel();
+			}
+		}, Math.max(deadline - System.currentTimeMillis(), 0l), TimeUnit.MILLISECONDS);
+		return cancellation;
+	}
+
+	private <T> void run(Context context, Cancellation cancellation, Callable<T> task, Handler<T> handler,
+			Handler<JsonObject> errorHandler) {
+		cancellations.set(cancellation);
+		try {
+			reply(context, cancellation, task, handler, errorHandler);
+		} finally {
+			cancellations.remove();
+		}
+	}
+
+	private <T> void reply(Context context, final Cancellation cancellation, Callable<T> task,
+			final Handler<T> handler, final Handler<JsonObject> errorHandler) {
+		T result = null;
+		JsonObject error = null;
+		try {
+			result = task.call();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			error = ExceptionUtils.exceptionToJson(e);
+		}
+		if (cancellation != null) {
+			cancellation.timer.cancel(false);
+		}
+		if (cancellation != null && cancellation.isCancelled() && (error != null ||
+				(result instanceof JsonObject && ((JsonObject) result).getString("message") != null))) {
+			// the failure of a terminated transaction is reported as the timeout which caused it
+			result = null;
+			error = ExceptionUtils.exceptionToJson(new TimeoutException("The query timeout of " + timeout +
+					"ms has been exceeded."));
+		}
+		final T res = result;
+		final JsonObject err = error;
+		if (context == null) {
+			reply(res, err, handler, errorHandler);
+			return;
+		}
+		context.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				reply(res, err, handler, errorHandler);
+			}
+		});
+	}
+
+	private static <T> void reply(T res, JsonObject err, Handler<T> handler, Handler<JsonObject> errorHandler) {
+		if (err != null) {
+			errorHandler.handle(err);
+		} else {
+			handler.handle(res);
+		}
+	}
+
+	@Override
+	public ResultCursor executeCursor(final String query, final JsonObject params) {
+		return new EmbeddedCursor(CypherClassifier.isWrite(query)) {
+			@Override
+			protected ExecutionResult open(JsonObject extra) {
+				return run(query, params);
+			}
+		};
+	}
+
+	@Override
+	public ResultCursor executeTransactionCursor(final JsonArray statements, Integer transactionId,
+			final boolean commit) {
+		return new EmbeddedCursor(hasWrite(statements, "statement")) {
+			@Override
+			protected ExecutionResult open(JsonObject extra) {
+				JsonArray results = new JsonArray();
+				ExecutionResult result = null;
+				for (Object o : statements) {
+					if (!(o instanceof JsonObject)) continue;
+					if (result != null) {
+						results.addArray(toJson(result));
+					}
+					JsonObject qr = (JsonObject) o;
+					result = run(qr.getString("statement"), qr.getObject("parameters"));
+				}
+				if (results.size() > 0) {
+					extra.putArray("results", results);
+				}
+				if (!commit) {
+					extra.putNumber("transactionId", 0);
+				}
+				return result;
+			}
+		};
 	}
 
 	@Override
@@ -188,140 +666,189 @@ public class Neo4jEmbedded implements GraphDatabase {
 		handler.handle(new JsonObject().putString("message", "Not implemented !"));
 	}
 
+	@Override
+	public GraphDatabase masterOnly() {
+		return this;
+	}
+
+	@Override
+	public GraphDatabase withPriority(String priority) {
+		return this;
+	}
+
+	@Override
+	public GraphDatabase withTimeout(long timeout) {
+		return (timeout > 0) ? new Neo4jEmbedded(this, timeout) : this;
+	}
+
+	@Override
+	public JsonObject stats() {
+		JsonObject stats = new JsonObject()
+				.putNumber("statements", statements.get())
+				.putNumber("rows", rows.get());
+		if (executor != null) {
+			stats.putObject("executor", executor.stats());
+		}
+		return stats;
+	}
+
 	@Override
 	public void close() {
+		if (executor != null) {
+			executor.close(10000l);
+		}
+		timeouts.shutdownNow();
 		if (gdb != null) {
 			gdb.shutdown();
 		}
 	}
 
-	@SuppressWarnings("unchecked")
+	private ExecutionResult run(String query, JsonObject params) {
+		statements.incrementAndGet();
+		if (params != null) {
+			return engine.execute(query, params.toMap());
+		}
+		return engine.execute(query);
+	}
+
 	private JsonArray toJson (ExecutionResult result) {
 		JsonArray json = new JsonArray();
 		if (result == null) {
 			return json;
 		}
-		for (Map<String, Object> row : result) {
-				JsonObject jsonRow = new JsonObject();
-				json.addObject(jsonRow);
-			for (Map.Entry<String, Object> column : row.entrySet()) {
-				Object v = column.getValue();
-				if (v == null) {
-					jsonRow.putValue(column.getKey(), null);
-				} else if (v instanceof Node) {
-					JsonObject nodeJson = nodeToJsonObject((Node) v);
-					jsonRow.putObject(column.getKey(), nodeJson);
-				} else if (isNodeArray(v)) {
-					Node[] nodes;
-					if (v instanceof Iterable) {
-						nodes = ((List<Node>) v).toArray(new Node[((List<Node>) v).size()]);
-					} else { //if (v != null && v.getClass().isArray()) {
-						nodes = (Node[]) v;
-					}
-					JsonArray nodesRes = new JsonArray();
-					for (Node n: nodes) {
-						nodesRes.addObject(nodeToJsonObject(n));
-					}
-					jsonRow.putArray(column.getKey(), nodesRes);
-				} else {
-					propertyToJson(jsonRow, column.getKey(), v);
-				}
-			}
+		EmbeddedSerializers.Row row = new EmbeddedSerializers.Row(result.columns());
+		for (Map<String, Object> r : result) {
+			json.addObject(row.toJson(r));
 		}
+		rows.addAndGet(json.size());
 		return json;
 	}
 
-	private JsonObject nodeToJsonObject(Node n) {
-		JsonObject data = new JsonObject();
-		for (String prop : n.getPropertyKeys()) {
-			propertyToJson(data, prop, n.getProperty(prop));
+	private JsonObject toColumnar(ExecutionResult result) {
+		EmbeddedSerializers.Row row = new EmbeddedSerializers.Row(result.columns());
+		JsonArray rowsJson = new JsonArray();
+		for (Map<String, Object> r : result) {
+			rowsJson.addArray(row.toJsonArray(r));
 		}
-		return new JsonObject().putObject("data", data);
+		rows.addAndGet(rowsJson.size());
+		return new JsonObject()
+				.putArray("columns", row.columns())
+				.putArray("rows", rowsJson);
 	}
 
-	private void propertyToJson(JsonObject jsonRow, String column, Object v) {
-		if (v instanceof Iterable) {
-			jsonRow.putArray(column, iterableToJsonArray((Iterable) v));
-		} else if (v != null && v.getClass().isArray()) {
-			jsonRow.putArray(column, arrayToJsonArray((Object[]) v));
-		} else if (v instanceof Boolean) {
-			jsonRow.putBoolean(column, (Boolean) v);
-		} else if (v instanceof Number) {
-			jsonRow.putNumber(column, (Number) v);
-		} else if (v instanceof Map) {
-			jsonRow.putObject(column, mapToJsonObject((Map<String, Object>) v));
-		} else {
-			String value = (v == null) ? "" : v.toString();
-			jsonRow.putString(column, value);
-		}
-	}
-
-	private JsonObject mapToJsonObject(Map<String, Object> v) {
-		JsonObject j = new JsonObject();
-		for (Map.Entry<String, Object> e : v.entrySet()) {
-			final Object eValue = e.getValue();
-			if (eValue instanceof Map) {
-				j.putObject(e.getKey(), mapToJsonObject((Map<String, Object>) eValue));
-			} else if (eValue instanceof Iterable) {
-				j.putArray(e.getKey(), iterableToJsonArray((Iterable) eValue));
-			} else if (eValue != null && eValue.getClass().isArray()) {
-				j.putArray(e.getKey(), arrayToJsonArray((Object[]) eValue));
-			} else if (eValue instanceof Boolean) {
-				j.putBoolean(e.getKey(), (Boolean) eValue);
-			} else if (eValue instanceof Number) {
-				j.putNumber(e.getKey(), (Number) eValue);
-			} else {
-				String value = (eValue == null) ? "" : eValue.toString();
-				j.putString(e.getKey(), value);
-			}
+	/**
+	 * Writes the rows of the result, or its columns and rows when columnar, as fields
+	 * of the current object. Values go straight from the result iterator to the writer.
+	 */
+	private void writeResult(JsonStreamWriter w, ExecutionResult result, boolean columnar) {
+		if (!columnar) {
+			w.fieldName("result");
+			writeRows(w, result);
+			return;
+		}
+		EmbeddedSerializers.Row row = new EmbeddedSerializers.Row(result.columns());
+		w.fieldName("columns");
+		row.writeColumns(w);
+		w.fieldName("rows").startArray();
+		long count = 0;
+		for (Map<String, Object> r : result) {
+			row.writeArray(w, r);
+			count++;
+		}
+		w.endArray();
+		rows.addAndGet(count);
+	}
+
+	private void writeRows(JsonStreamWriter w, ExecutionResult result) {
+		EmbeddedSerializers.Row row = new EmbeddedSerializers.Row(result.columns());
+		w.startArray();
+		long count = 0;
+		for (Map<String, Object> r : result) {
+			row.write(w, r);
+			count++;
+		}
+		w.endArray();
+		rows.addAndGet(count);
+	}
+
+	/**
+	 * Transaction of a query with a timeout, terminated by the timeouts thread while the query runs.
+	 * It is detached before being closed : kernel transactions are pooled, a late termination
+	 * could hit the next query.
+	 */
+	private static final class Cancellation {
+
+		private ScheduledFuture<?> timer;
+		private Transaction tx;
+		private boolean cancelled;
+
+		private Transaction bind(final Transaction tx) {
+			attach(tx);
+			return new Transaction() {
+				@Override
+				public void terminate() {
+					tx.terminate();
+				}
+
+				@Override
+				public void failure() {
+					tx.failure();
+				}
+
+				@Override
+				public void success() {
+					tx.success();
+				}
+
+				@Override
+				@Deprecated
+				public void finish() {
+					close();
+				}
+
+				@Override
+				public void close() {
+					detach();
+					tx.close();
+				}
+
+				@Override
+				public Lock acquireWriteLock(PropertyContainer entity) {
+					return tx.acquireWriteLock(entity);
+				}
+
+				@Override
+				public Lock acquireReadLock(PropertyContainer entity) {
+					return tx.acquireReadLock(entity);
+				}
+			};
 		}
-		return j;
-	}
-
-	private JsonArray iterableToJsonArray(Iterable i) {
-		JsonArray a = new JsonArray();
-		for (Object o : i) {
-			if (o instanceof Iterable) {
-				JsonArray r = iterableToJsonArray((Iterable) o);
-				a.addArray(r);
-			} else if (o != null && o.getClass().isArray()) {
-				JsonArray r = arrayToJsonArray((Object[]) o);
-				a.addArray(r);
-			} else if (o instanceof Map) {
-				a.add(mapToJsonObject((Map<String, Object>) o));
-			} else {
-				a.add(o);
+
+		/**
+		 * Terminates the transaction if the query is cancelled while it is attached.
+		 */
+		private synchronized void attach(Transaction tx) {
+			this.tx = tx;
+			if (cancelled) {
+				tx.terminate();
 			}
 		}
-		return a;
-	}
-
-	private JsonArray arrayToJsonArray(Object[] i) {
-		JsonArray a = new JsonArray();
-		for (Object o : i) {
-			if (o instanceof Iterable) {
-				JsonArray r = iterableToJsonArray((Iterable) o);
-				a.addArray(r);
-			} else if (o != null && o.getClass().isArray()) {
-				JsonArray r = arrayToJsonArray((Object[]) o);
-				a.addArray(r);
-			} else if (o instanceof Map) {
-				a.add(mapToJsonObject((Map<String, Object>) o));
-			} else {
-				a.add(o);
+
+		private synchronized void detach() {
+			tx = null;
+		}
+
+		private synchronized void cancel() {
+			cancelled = true;
+			if (tx != null) {
+				tx.terminate();
 			}
 		}
-		return a;
-	}
 
-	private boolean isNodeArray(Object o) {
-		Object[] objects = null;
-		if (o instanceof Iterable) {
-			objects = ((List<Object>) o).toArray();
-		} else if (o != null && o.getClass().isArray()) {
-			objects = (Object[]) o;
+		private synchronized boolean isCancelled() {
+			return cancelled;
 		}
-		return objects != null && objects.length > 0 && objects[0] instanceof Node;
+
 	}
 
 }
@@ -19,9 +19,15 @@
 package fr.wseduc.neo4j;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
+import fr.wseduc.neo4j.exception.ExceptionUtils;
+import fr.wseduc.neo4j.exception.Neo4jOverloadedException;
 import org.vertx.java.busmods.BusModBase;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
@@ -29,7 +35,19 @@ import org.vertx.java.core.json.JsonObject;
 
 public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonObject>> {
 
+	private static final String OVERLOADED = Neo4jOverloadedException.class.getSimpleName();
 	private GraphDatabase db;
+	private ResultCursors cursors;
+	private GroupCommit groupCommit;
+	private ResultCache resultCache;
+	private BulkLoad bulkLoad;
+	private BatchFolder batchFolder;
+	private SessionTracker sessions;
+	private SlowQueryLog slowQueries;
+	private int slowQueriesTop;
+	private final Metrics metrics = new Metrics("execute", "executeBatch", "executeTransaction",
+			"resetTransactionTimeout", "rollbackTransaction", "unmanagedExtension", "fetch", "bulkLoad");
+	private long statsTimerId = -1;
 
 	@Override
 	public void start() {
@@ -50,12 +68,49 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 						config.getLong("checkDelay", 3000l),
 						config.getInteger("poolsize", 32),
 						config.getBoolean("keepAlive", true),
-						config.getObject("neo4j"));
+						config.getObject("neo4j"), config);
 			} catch (Exception e) {
 				logger.error(e.getMessage(), e);
 			}
 		} else {
-			db = new Neo4jEmbedded(config, logger);
+			db = new Neo4jEmbedded(config, vertx, logger);
+		}
+
+		cursors = new ResultCursors(vertx, config.getLong("cursor-timeout", 60000l));
+		JsonObject resultCacheConfig = config.getObject("result-cache");
+		if (resultCacheConfig != null) {
+			resultCache = ResultCache.acquire(config.getString("address", "neo4j.persistor"), resultCacheConfig);
+		}
+		JsonObject groupCommitConfig = config.getObject("group-commit");
+		if (groupCommitConfig != null && db != null) {
+			groupCommit = new GroupCommit(vertx, db, groupCommitConfig);
+		}
+
+		JsonObject batchFoldingConfig = config.getObject("batch-folding");
+		if (batchFoldingConfig != null) {
+			batchFolder = new BatchFolder(batchFoldingConfig);
+		}
+		JsonObject readYourWritesConfig = config.getObject("read-your-writes");
+		if (readYourWritesConfig != null) {
+			sessions = new SessionTracker(readYourWritesConfig);
+		}
+		JsonObject slowQueriesConfig = config.getObject("slow-queries");
+		if (slowQueriesConfig != null) {
+			slowQueries = new SlowQueryLog(slowQueriesConfig, logger);
+			slowQueriesTop = slowQueriesConfig.getInteger("top", 20);
+		}
+		if (db != null) {
+			bulkLoad = new BulkLoad(vertx, db, config.getObject("bulk-load", new JsonObject()));
+		}
+
+		final String statsAddress = config.getString("stats-address");
+		if (statsAddress != null) {
+			statsTimerId = vertx.setPeriodic(config.getLong("stats-interval", 10000l), new Handler<Long>() {
+				@Override
+				public void handle(Long event) {
+					eb.publish(statsAddress, stats());
+				}
+			});
 		}
 
 		eb.registerHandler(config.getString("address", "neo4j.persistor"),this);
@@ -65,6 +120,18 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 	@Override
 	public void stop() {
 		super.stop();
+		if (statsTimerId >= 0) {
+			vertx.cancelTimer(statsTimerId);
+		}
+		if (groupCommit != null) {
+			groupCommit.flush();
+		}
+		if (cursors != null) {
+			cursors.close();
+		}
+		if (resultCache != null) {
+			resultCache.release();
+		}
 		if (db != null) {
 			db.close();
 		}
@@ -91,6 +158,24 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 			case "unmanagedExtension":
 				unmanagedExtension(m);
 				break;
+			case "fetch" :
+				fetch(m);
+				break;
+			case "closeCursor" :
+				closeCursor(m);
+				break;
+			case "cacheStats" :
+				cacheStats(m);
+				break;
+			case "bulkLoad" :
+				bulkLoad(m);
+				break;
+			case "stats" :
+				sendOK(m, stats());
+				break;
+			case "slowQueries" :
+				slowQueries(m);
+				break;
 			default :
 				sendError(m, "Invalid or missing action");
 		}
@@ -104,15 +189,240 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 			sendError(m, "Invalid attributes.");
 			return;
 		}
-		db.unmanagedExtension(method, uri, body, resultHandler(m));
+		database(m).unmanagedExtension(method, uri, body, resultHandler(m));
 	}
 
 	private void executeBatch(Message<JsonObject> m) {
-		db.executeBatch(m.body().getArray("queries"), resultHandler(m));
+		final GraphDatabase target = database(m);
+		JsonArray queries = m.body().getArray("queries");
+		if (isEncoded(m)) {
+			EncodedReply reply = new EncodedReply(m);
+			if (queries != null) {
+				for (Object o : queries) {
+					if (!(o instanceof JsonObject)) continue;
+					reply.invalidateOnWrite(((JsonObject) o).getString("query"));
+				}
+			}
+			target.executeBatchEncoded(queries, isColumnar(m), reply, reply.errorHandler());
+			return;
+		}
+		Handler<JsonObject> handler = resultHandler(m);
+		if (resultCache != null && queries != null) {
+			for (Object o : queries) {
+				if (!(o instanceof JsonObject)) continue;
+				handler = invalidateOnWrite(((JsonObject) o).getString("query"), m, handler);
+			}
+		}
+		final boolean columnar = isColumnar(m);
+		final BatchFolder.Folded folded = (batchFolder != null && !columnar && queries != null) ?
+				batchFolder.fold(queries) : null;
+		if (folded == null) {
+			target.executeBatch(queries, columnar, handler);
+			return;
+		}
+		final JsonArray original = queries;
+		final Handler<JsonObject> h = handler;
+		target.executeBatch(folded.queries(), false, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				if (res.getString("message") != null && ExceptionUtils.isStatementError(res)) {
+					// a statement failed and the batch, one transaction, was rolled back : send it again unfolded
+					logger.debug("Folded batch failed : " + res.getString("message"));
+					target.executeBatch(original, false, h);
+					return;
+				}
+				if (res.getString("message") != null) {
+					// the batch may have been written, or not sent at all (busy, overloaded)
+					h.handle(res);
+					return;
+				}
+				JsonObject unfolded = folded.unfold(res);
+				h.handle((unfolded != null) ? unfolded :
+						new JsonObject().putString("message", "Unexpected results of folded batch."));
+			}
+		});
 	}
 
 	private void execute(final Message<JsonObject> m) {
-		db.execute(m.body().getString("query"), m.body().getObject("params"), resultHandler(m));
+		String query = m.body().getString("query");
+		final boolean write = CypherClassifier.isWrite(query);
+		final GraphDatabase target = write ? database(m) : reader(m);
+		int fetchSize = m.body().getInteger("fetchSize", 0);
+		if (fetchSize > 0) {
+			fetch(m, null, invalidateOnWrite(query, m, target.executeCursor(query, m.body().getObject("params"))),
+					fetchSize);
+			return;
+		}
+		final boolean columnar = isColumnar(m);
+		if (isEncoded(m)) {
+			EncodedReply reply = new EncodedReply(m);
+			reply.invalidateOnWrite(query);
+			target.executeEncoded(query, m.body().getObject("params"), columnar, reply, reply.errorHandler());
+			return;
+		}
+		if (resultCache != null && !columnar && m.body().getObject("cache") != null && !write) {
+			cachedExecute(query, m, target);
+			return;
+		}
+		Handler<JsonObject> handler = resultHandler(m);
+		if (resultCache != null) {
+			handler = invalidateOnWrite(query, m, handler);
+		}
+		// a grouped statement runs in the default lane without timeout : the others are sent alone
+		if (groupCommit != null && !columnar && write && m.body().getString("priority") == null &&
+				m.body().getLong("timeout", 0l) <= 0) {
+			groupCommit.execute(query, m.body().getObject("params"), handler);
+			return;
+		}
+		target.execute(query, m.body().getObject("params"), columnar, handler);
+	}
+
+	/**
+	 * Database in the priority lane of the message, cancelling its queries after its timeout.
+	 */
+	private GraphDatabase database(Message<JsonObject> m) {
+		return db.withPriority(m.body().getString("priority")).withTimeout(m.body().getLong("timeout", 0l));
+	}
+
+	/**
+	 * Database of a read : the master when the session of the message has written recently.
+	 */
+	private GraphDatabase reader(Message<JsonObject> m) {
+		String session = (sessions != null) ? m.body().getString("session") : null;
+		GraphDatabase target = database(m);
+		return (session != null && sessions.readFromMaster(session)) ? target.masterOnly() : target;
+	}
+
+	/**
+	 * Marks the start of a write of the session of the message.
+	 * @return the session, to mark the end of the write, or null if the message does not write in a session
+	 */
+	private String writeSession(Message<JsonObject> m) {
+		String session = (sessions != null) ? m.body().getString("session") : null;
+		if (session == null || !isWrite(m.body())) {
+			return null;
+		}
+		sessions.writeStarted(session);
+		return session;
+	}
+
+	private static boolean isWrite(JsonObject body) {
+		String query = body.getString("query");
+		if (query == null) {
+			query = body.getString("statement");
+		}
+		if (query != null) {
+			return CypherClassifier.isWrite(query);
+		}
+		JsonArray queries = body.getArray("queries");
+		if (queries == null) {
+			queries = body.getArray("statements");
+		}
+		if (queries != null) {
+			for (Object o : queries) {
+				if (!(o instanceof JsonObject)) continue;
+				String q = ((JsonObject) o).getString("query", ((JsonObject) o).getString("statement"));
+				if (q != null && CypherClassifier.isWrite(q)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void bulkLoad(Message<JsonObject> m) {
+		Handler<JsonObject> handler = resultHandler(m);
+		String statement = m.body().getString("statement");
+		if (resultCache != null && statement != null) {
+			handler = invalidateOnWrite(statement, m, handler);
+		}
+		bulkLoad.load(m.body(), handler);
+	}
+
+	private void cachedExecute(final String query, final Message<JsonObject> m, GraphDatabase target) {
+		final JsonObject params = m.body().getObject("params");
+		final JsonObject options = m.body().getObject("cache");
+		final String key = ResultCache.key(query, params);
+		JsonArray cached = resultCache.get(key);
+		if (cached != null) {
+			metrics.started("execute");
+			metrics.ended("execute", System.nanoTime(), null);
+			sendOK(m, new JsonObject().putArray("result", cached));
+			return;
+		}
+		final long generation = resultCache.generation();
+		final Handler<JsonObject> handler = resultHandler(m);
+		target.execute(query, params, false, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				JsonArray result = res.getArray("result");
+				if (res.getString("message") == null && result != null) {
+					resultCache.put(key, result.copy(), options.getLong("ttl", 0l),
+							ResultCache.tags(query, options.getArray("tags")), generation);
+				}
+				handler.handle(res);
+			}
+		});
+	}
+
+	/**
+	 * Keeps the reads in flight sharing a tag of the write out of the cache when the write is sent,
+	 * and invalidates the cached results when it completes, so a read started in between can't
+	 * cache the previous state.
+	 */
+	private Handler<JsonObject> invalidateOnWrite(String query, Message<JsonObject> m,
+			final Handler<JsonObject> handler) {
+		if (!CypherClassifier.isWrite(query)) {
+			return handler;
+		}
+		final Set<String> tags = ResultCache.invalidated(query, m.body().getArray("invalidate"));
+		resultCache.writeStarted(tags);
+		return new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				resultCache.invalidate(tags);
+				handler.handle(res);
+			}
+		};
+	}
+
+	/**
+	 * Same for a cursor : the write completes with its last page, an error or its close.
+	 */
+	private ResultCursor invalidateOnWrite(String query, Message<JsonObject> m, final ResultCursor cursor) {
+		if (resultCache == null || !CypherClassifier.isWrite(query)) {
+			return cursor;
+		}
+		final Set<String> tags = ResultCache.invalidated(query, m.body().getArray("invalidate"));
+		resultCache.writeStarted(tags);
+		return new ResultCursor() {
+			@Override
+			public void fetch(int size, final Handler<JsonObject> handler) {
+				cursor.fetch(size, new Handler<JsonObject>() {
+					@Override
+					public void handle(JsonObject res) {
+						if (res.getString("message") != null || !res.getBoolean("hasMore", false)) {
+							resultCache.invalidate(tags);
+						}
+						handler.handle(res);
+					}
+				});
+			}
+
+			@Override
+			public void close() {
+				resultCache.invalidate(tags);
+				cursor.close();
+			}
+		};
+	}
+
+	private void cacheStats(Message<JsonObject> m) {
+		if (resultCache == null) {
+			sendError(m, "Result cache is disabled.");
+			return;
+		}
+		sendOK(m, resultCache.stats());
 	}
 
 	private void executeTransaction(Message<JsonObject> m) {
@@ -120,9 +430,96 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 			sendError(m, "Invalid statements.");
 			return;
 		}
-		db.executeTransaction(m.body().getArray("statements"),
+		final GraphDatabase target = database(m);
+		int fetchSize = m.body().getInteger("fetchSize", 0);
+		if (fetchSize > 0) {
+			ResultCursor cursor = target.executeTransactionCursor(m.body().getArray("statements"),
+					m.body().getInteger("transactionId"), m.body().getBoolean("commit", false));
+			for (Object o : m.body().getArray("statements")) {
+				if (!(o instanceof JsonObject)) continue;
+				cursor = invalidateOnWrite(((JsonObject) o).getString("statement"), m, cursor);
+			}
+			fetch(m, null, cursor, fetchSize);
+			return;
+		}
+		if (isEncoded(m)) {
+			EncodedReply reply = new EncodedReply(m);
+			for (Object o : m.body().getArray("statements")) {
+				if (!(o instanceof JsonObject)) continue;
+				reply.invalidateOnWrite(((JsonObject) o).getString("statement"));
+			}
+			target.executeTransactionEncoded(m.body().getArray("statements"), m.body().getInteger("transactionId"),
+					m.body().getBoolean("commit", false), isColumnar(m), reply, reply.errorHandler());
+			return;
+		}
+		Handler<JsonObject> handler = resultHandler(m);
+		if (resultCache != null) {
+			for (Object o : m.body().getArray("statements")) {
+				if (!(o instanceof JsonObject)) continue;
+				handler = invalidateOnWrite(((JsonObject) o).getString("statement"), m, handler);
+			}
+		}
+		target.executeTransaction(m.body().getArray("statements"),
 				m.body().getInteger("transactionId"),
-				m.body().getBoolean("commit", false), resultHandler(m));
+				m.body().getBoolean("commit", false), isColumnar(m), handler);
+	}
+
+	private void fetch(Message<JsonObject> m) {
+		String cursorId = m.body().getString("cursorId");
+		ResultCursor cursor = (cursorId != null) ? cursors.lock(cursorId) : null;
+		if (cursor == null) {
+			sendError(m, "Unknown, expired or busy cursor.");
+			return;
+		}
+		fetch(m, cursorId, cursor, m.body().getInteger("fetchSize", 100));
+	}
+
+	private void fetch(final Message<JsonObject> m, final String id, final ResultCursor cursor, int fetchSize) {
+		final String action = m.body().getString("action");
+		final long start = System.nanoTime();
+		final String session = writeSession(m);
+		metrics.started(action);
+		cursor.fetch(fetchSize, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				String error = res.getString("message");
+				metrics.ended(action, start, errorType(res));
+				if (slowQueries != null && id == null) {
+					slowQueries.record(m.body(), System.nanoTime() - start, SlowQueryLog.rows(res), 0, error != null);
+				}
+				if (session != null) {
+					sessions.writeEnded(session);
+				}
+				if (error != null) {
+					if (id != null) {
+						cursors.remove(id);
+					}
+					cursor.close();
+					m.reply(errorReply(res));
+					return;
+				}
+				if (res.getBoolean("hasMore", false)) {
+					if (id != null) {
+						cursors.unlock(id);
+						res.putString("cursorId", id);
+					} else {
+						res.putString("cursorId", cursors.register(cursor));
+					}
+				} else if (id != null) {
+					cursors.remove(id);
+				}
+				sendOK(m, res);
+			}
+		});
+	}
+
+	private void closeCursor(Message<JsonObject> m) {
+		String cursorId = m.body().getString("cursorId");
+		ResultCursor cursor = (cursorId != null) ? cursors.remove(cursorId) : null;
+		if (cursor != null) {
+			cursor.close();
+		}
+		sendOK(m);
 	}
 
 	private void resetTransaction(Message<JsonObject> m) {
@@ -130,7 +527,7 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 			sendError(m, "Invalid transaction id.");
 			return;
 		}
-		db.resetTransactionTimeout(m.body().getInteger("transactionId"), resultHandler(m));
+		database(m).resetTransactionTimeout(m.body().getInteger("transactionId"), resultHandler(m));
 	}
 
 	private void rollbackTransaction(Message<JsonObject> m) {
@@ -138,23 +535,164 @@ public class Neo4jPersistor extends BusModBase implements Handler<Message<JsonOb
 			sendError(m, "Invalid transaction id.");
 			return;
 		}
-		db.rollbackTransaction(m.body().getInteger("transactionId"), resultHandler(m));
+		database(m).rollbackTransaction(m.body().getInteger("transactionId"), resultHandler(m));
+	}
+
+	private void slowQueries(Message<JsonObject> m) {
+		if (slowQueries == null) {
+			sendError(m, "Slow queries log is disabled.");
+			return;
+		}
+		JsonObject res = new JsonObject()
+				.putArray("queries", slowQueries.top(m.body().getInteger("limit", slowQueriesTop)))
+				.putNumber("fingerprints", slowQueries.size());
+		if (m.body().getBoolean("reset", false)) {
+			slowQueries.reset();
+		}
+		sendOK(m, res);
+	}
+
+	private JsonObject stats() {
+		JsonObject stats = metrics.snapshot();
+		if (db != null) {
+			stats.putObject("database", db.stats());
+		}
+		if (cursors != null) {
+			stats.putNumber("cursors", cursors.size());
+		}
+		if (resultCache != null) {
+			stats.putObject("cache", resultCache.stats());
+		}
+		if (sessions != null) {
+			stats.putObject("readYourWrites", sessions.stats());
+		}
+		return stats;
+	}
+
+	private static boolean isColumnar(Message<JsonObject> m) {
+		return "columnar".equals(m.body().getString("format"));
+	}
+
+	private static boolean isEncoded(Message<JsonObject> m) {
+		return m.body().getBoolean("encoded", false);
+	}
+
+	private static String errorType(JsonObject res) {
+		if (res.getString("message") == null) {
+			return null;
+		}
+		String exception = res.getString("exception");
+		return (exception != null) ? exception : "Neo4jError";
+	}
+
+	/**
+	 * Error reply of a database result. Requests rejected because Neo4j is overloaded are flagged
+	 * with overloaded, so that callers can back off, and not logged as they come in bursts.
+	 */
+	private JsonObject errorReply(JsonObject res) {
+		JsonObject reply = new JsonObject().putString("status", "error")
+				.putString("message", res.getString("message"));
+		if (OVERLOADED.equals(res.getString("exception"))) {
+			reply.putBoolean("overloaded", true);
+		} else {
+			logger.error(res.getString("exception") + " : " + res.getString("message"));
+		}
+		return reply;
 	}
 
 	private Handler<JsonObject> resultHandler(final Message<JsonObject> m) {
+		final String action = m.body().getString("action");
+		final long start = System.nanoTime();
+		final String session = writeSession(m);
+		metrics.started(action);
 		return new Handler<JsonObject>() {
 
 			@Override
 			public void handle(JsonObject res) {
-				String error = res.getString("message");
-				if (error == null) {
+				metrics.ended(action, start, errorType(res));
+				if (slowQueries != null) {
+					slowQueries.record(m.body(), System.nanoTime() - start, SlowQueryLog.rows(res), 0,
+							res.getString("message") != null);
+				}
+				if (session != null) {
+					sessions.writeEnded(session);
+				}
+				if (res.getString("message") == null) {
 					sendOK(m, res);
 				} else {
-					logger.error(res.getString("exception") + " : " + error);
-					sendError(m, error);
+					m.reply(errorReply(res));
 				}
 			}
 		};
 	}
 
+	/**
+	 * Replies the buffer encoded by the database as is. Errors are encoded too,
+	 * so the reply body is always a Buffer.
+	 */
+	private class EncodedReply implements Handler<Buffer> {
+
+		private final Message<JsonObject> m;
+		private final String action;
+		private final long start = System.nanoTime();
+		private final String session;
+		private Set<String> tags;
+		private boolean invalidateAll;
+
+		private EncodedReply(Message<JsonObject> m) {
+			this.m = m;
+			this.action = m.body().getString("action");
+			this.session = writeSession(m);
+			metrics.started(action);
+		}
+
+		/**
+		 * Same as the invalidateOnWrite of the JsonObject replies.
+		 */
+		private void invalidateOnWrite(String query) {
+			if (resultCache == null || !CypherClassifier.isWrite(query)) {
+				return;
+			}
+			Set<String> t = ResultCache.invalidated(query, m.body().getArray("invalidate"));
+			resultCache.writeStarted(t);
+			if (tags == null) {
+				tags = new HashSet<>(t);
+				invalidateAll = t.isEmpty();
+			} else {
+				tags.addAll(t);
+				invalidateAll |= t.isEmpty();
+			}
+		}
+
+		private void ended(String errorType, long bytes) {
+			metrics.ended(action, start, errorType);
+			if (slowQueries != null) {
+				slowQueries.record(m.body(), System.nanoTime() - start, 0, bytes, errorType != null);
+			}
+			if (session != null) {
+				sessions.writeEnded(session);
+			}
+			if (tags != null) {
+				resultCache.invalidate(invalidateAll ? Collections.<String>emptySet() : tags);
+			}
+		}
+
+		@Override
+		public void handle(Buffer res) {
+			ended(null, res.length());
+			m.reply(res);
+		}
+
+		private Handler<JsonObject> errorHandler() {
+			return new Handler<JsonObject>() {
+				@Override
+				public void handle(JsonObject res) {
+					ended(errorType(res), 0);
+					m.reply(new Buffer(errorReply(res).encode()));
+				}
+			};
+		}
+
+	}
+
 }
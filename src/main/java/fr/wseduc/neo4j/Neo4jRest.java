@@ -18,36 +18,76 @@
 
 package fr.wseduc.neo4j;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import fr.wseduc.neo4j.exception.ExceptionUtils;
 import fr.wseduc.neo4j.exception.Neo4jConnectionException;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpClient;
 import org.vertx.java.core.http.HttpClientRequest;
 import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.DecodeException;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonElement;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.net.NetSocket;
 
 public class Neo4jRest implements GraphDatabase {
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String TIMEOUT = TimeoutException.class.getSimpleName();
 	private final Neo4jRestNodeClient nodeManager;
 	private final boolean ro;
 	private final Logger logger;
 	private final String basePath;
-	private Pattern writingClausesPattern = Pattern.compile(
-			"(\\s+set\\s+|create\\s+|merge\\s+|delete\\s+|remove\\s+|foreach)", Pattern.CASE_INSENSITIVE);
+	private final Vertx vertx;
+	private final int requestTimeout;
+	private final boolean hedgeReads;
+	private final long hedgeMinDelay;
+	private final boolean transactional;
+	private final JsonArray resultDataContents;
+	private final LatencyWindow readLatencies;
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+	private final AtomicLong gzipBytesIn;
+	private final AtomicLong gzipBytesOut;
+	private final int gzipMinSize;
+	private final int gzipLevel;
+	private final int lane;
+	private final long queryTimeout;
+	private final long deadline;
+	private final Neo4jRest masterOnly;
+	private final Neo4jRest[] lanes;
 
 	public Neo4jRest(URI[] uris, boolean ro, Vertx vertx, Logger logger, long checkDelay, int poolSize,
-			boolean keepAlive, JsonObject neo4jConfig) {
-		nodeManager = new Neo4jRestNodeClient(uris, vertx, checkDelay, poolSize, keepAlive);
+			boolean keepAlive, JsonObject neo4jConfig, JsonObject config) {
+		nodeManager = new Neo4jRestNodeClient(uris, vertx, checkDelay, poolSize, keepAlive, config);
 		this.ro = ro;
+		this.vertx = vertx;
+		this.requestTimeout = config.getInteger("request-timeout", 0);
+		this.hedgeReads = config.getBoolean("hedge-reads", false);
+		this.hedgeMinDelay = config.getLong("hedge-min-delay", 10l);
+		this.transactional = "transactional".equals(config.getString("transport", "cypher"));
+		this.resultDataContents = new JsonArray().add(config.getString("result-data-contents", "rest"));
+		JsonObject gzip = config.getObject("gzip", new JsonObject());
+		this.gzipMinSize = gzip.getInteger("request-min-size", -1);
+		this.gzipLevel = gzip.getInteger("level", 1);
+		this.readLatencies = new LatencyWindow(256, 0.95);
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+		this.gzipBytesIn = new AtomicLong();
+		this.gzipBytesOut = new AtomicLong();
 		String path = uris[0].getPath();
 		if (path != null && path.endsWith("/")) {
 			this.basePath  = path.substring(0, path.length() - 1);
@@ -65,6 +105,144 @@ public class Neo4jRest implements GraphDatabase {
 				}
 			}
 		}
+		this.lane = 0;
+		this.queryTimeout = 0;
+		this.deadline = 0;
+		this.lanes = new Neo4jRest[nodeManager.laneCount()];
+		this.masterOnly = ro ? new Neo4jRest(this, false, 0, 0, 0) : this;
+		this.lanes[0] = this;
+		for (int i = 1; i < lanes.length; i++) {
+			lanes[i] = new Neo4jRest(this, ro, i, 0, 0);
+		}
+	}
+
+	/**
+	 * View sharing the nodes and the statistics of the given database, which sends its requests
+	 * in the given priority lane, its reads to the master if ro is false, and cancels its queries
+	 * at the deadline if queryTimeout is set.
+	 */
+	private Neo4jRest(Neo4jRest rest, boolean ro, int lane, long queryTimeout, long deadline) {
+		this.nodeManager = rest.nodeManager;
+		this.ro = ro;
+		this.logger = rest.logger;
+		this.basePath = rest.basePath;
+		this.vertx = rest.vertx;
+		this.requestTimeout = rest.requestTimeout;
+		this.hedgeReads = rest.hedgeReads;
+		this.hedgeMinDelay = rest.hedgeMinDelay;
+		this.transactional = rest.transactional;
+		this.resultDataContents = rest.resultDataContents;
+		this.readLatencies = rest.readLatencies;
+		this.bytesIn = rest.bytesIn;
+		this.bytesOut = rest.bytesOut;
+		this.gzipBytesIn = rest.gzipBytesIn;
+		this.gzipBytesOut = rest.gzipBytesOut;
+		this.gzipMinSize = rest.gzipMinSize;
+		this.gzipLevel = rest.gzipLevel;
+		this.lane = lane;
+		this.queryTimeout = queryTimeout;
+		this.deadline = deadline;
+		this.masterOnly = ro ? new Neo4jRest(this, false, lane, queryTimeout, deadline) : this;
+		this.lanes = rest.lanes;
+	}
+
+	@Override
+	public GraphDatabase masterOnly() {
+		return masterOnly;
+	}
+
+	@Override
+	public GraphDatabase withPriority(String priority) {
+		Neo4jRest view = lanes[nodeManager.lane(priority)];
+		view = (masterOnly == this) ? view.masterOnly : view;
+		return (queryTimeout > 0) ? new Neo4jRest(view, view.ro, view.lane, queryTimeout, deadline) : view;
+	}
+
+	@Override
+	public GraphDatabase withTimeout(long timeout) {
+		if (timeout <= 0) {
+			return this;
+		}
+		return new Neo4jRest(this, ro, lane, timeout, System.currentTimeMillis() + timeout);
+	}
+
+	/**
+	 * Replies a TimeoutException at the deadline of the view, and drops the late result.
+	 * The server stops the query itself with the max-execution-time header (see post).
+	 * The transaction of the query, the given one or the one opened by the late result, is rolled back.
+	 */
+	private Handler<JsonObject> expiring(final Handler<JsonObject> handler, final Integer transactionId) {
+		if (queryTimeout <= 0) {
+			return handler;
+		}
+		final boolean[] done = {false};
+		final long timerId = vertx.setTimer(Math.max(deadline - System.currentTimeMillis(), 1), new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				done[0] = true;
+				if (transactionId != null) {
+					rollbackExpired(transactionId);
+				}
+				handler.handle(ExceptionUtils.exceptionToJson(new TimeoutException("The query timeout of " +
+						queryTimeout + "ms has been exceeded.")));
+			}
+		});
+		return new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				if (!done[0]) {
+					done[0] = true;
+					vertx.cancelTimer(timerId);
+					if (transactionId != null && TIMEOUT.equals(res.getString("exception"))) {
+						// not sent because the deadline was reached while waiting for a connection
+						rollbackExpired(transactionId);
+					}
+					handler.handle(res);
+				} else if (transactionId == null && res.getInteger("transactionId") != null) {
+					rollbackExpired(res.getInteger("transactionId"));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Fails the cursor with a TimeoutException if its response has not ended once the query timeout
+	 * is elapsed, and rolls back its transaction, the given one or the one opened by its statements.
+	 */
+	private Neo4jRestCursor expiring(final Neo4jRestCursor cursor, final Integer transactionId) {
+		if (queryTimeout <= 0) {
+			return cursor;
+		}
+		final long timerId = vertx.setTimer(Math.max(deadline - System.currentTimeMillis(), 1), new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				final Integer id = (transactionId != null) ? transactionId : cursor.transactionId();
+				cursor.error(ExceptionUtils.exceptionToJson(new TimeoutException("The query timeout of " +
+						queryTimeout + "ms has been exceeded.")));
+				if (id != null) {
+					rollbackExpired(id);
+				}
+			}
+		});
+		cursor.doneHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				vertx.cancelTimer(timerId);
+			}
+		});
+		return cursor;
+	}
+
+	private void rollbackExpired(final int transactionId) {
+		rollbackTransaction(transactionId, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				if (res.getString("message") != null) {
+					logger.warn("Error rolling back the timed out transaction " + transactionId + " : " +
+							res.getString("message"));
+				}
+			}
+		});
 	}
 
 	private void createIndex(final JsonObject j) {
@@ -89,32 +267,48 @@ public class Neo4jRest implements GraphDatabase {
 	}
 
 	@Override
-	public void execute(String query, JsonObject p, final Handler<JsonObject> handler) {
+	public void execute(String query, JsonObject p, final boolean columnar, Handler<JsonObject> resultHandler) {
+		final Handler<JsonObject> handler = expiring(resultHandler, null);
 		JsonObject params = p;
 		if (params == null) {
 			params = new JsonObject();
 		}
-		JsonObject body = new JsonObject()
-				.putString("query", query)
-				.putObject("params", params);
-		logger.debug(body.encode());
+		if (transactional) {
+			commit(new JsonArray().addObject(statement(query, params, resultDataContents)), true, columnar, handler,
+					new Handler<ResultCollector>() {
+				@Override
+				public void handle(ResultCollector c) {
+					handler.handle(columnar ? c.columnar(0) : new JsonObject().putArray("result", c.result(0)));
+				}
+			});
+			return;
+		}
+		JsonObject body = cypherBody(query, params);
+		if (logger.isDebugEnabled()) {
+			logger.debug(body.encode());
+		}
 		try {
 			sendRequest("/cypher", body, true, new Handler<HttpClientResponse>() {
 
 				@Override
 				public void handle(final HttpClientResponse resp) {
+					if (resp.statusCode() == 200) {
+						streamResponse(resp, new Handler<ResultCollector>() {
+							@Override
+							public void handle(ResultCollector c) {
+								handler.handle(columnar ? c.columnar(0) :
+										new JsonObject().putArray("result", c.result(0)));
+							}
+						}, columnar, handler);
+						return;
+					}
 					resp.bodyHandler(new Handler<Buffer>() {
 
 						@Override
 						public void handle(Buffer b) {
 							logger.debug(b.toString());
 							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonObject json = new JsonObject(b.toString("UTF-8"));
-								if (resp.statusCode() == 200) {
-									handler.handle(new JsonObject().putArray("result", transformJson(json)));
-								} else {
-									handler.handle(json);
-								}
+								handler.handle(new JsonObject(b.toString("UTF-8")));
 							} else {
 								handler.handle(new JsonObject().putString("message",
 										resp.statusMessage() + " : " + b.toString()));
@@ -122,122 +316,352 @@ public class Neo4jRest implements GraphDatabase {
 						}
 					});
 				}
-			});
+			}, exceptionHandler(handler));
 		} catch (Neo4jConnectionException e) {
-			ExceptionUtils.exceptionToJson(e);
+			handler.handle(ExceptionUtils.exceptionToJson(e));
 		}
 	}
 
 	@Override
-	public void executeBatch(JsonArray queries, final Handler<JsonObject> handler) {
-		JsonArray body = new JsonArray();
-		int i = 0;
-		for (Object q : queries) {
-			JsonObject query = new JsonObject()
-					.putString("method", "POST")
-					.putString("to", "/cypher")
-					.putObject("body", (JsonObject) q)
-					.putNumber("id", i++);
-			body.add(query);
+	public void executeBatch(final JsonArray queries, final boolean columnar, Handler<JsonObject> resultHandler) {
+		final Handler<JsonObject> handler = expiring(resultHandler, null);
+		if (transactional) {
+			JsonArray statements = new JsonArray();
+			for (Object q : queries) {
+				statements.addObject(statement(((JsonObject) q).getString("query"), ((JsonObject) q).getObject("params"),
+						resultDataContents));
+			}
+			commit(statements, false, columnar, handler, new Handler<ResultCollector>() {
+				@Override
+				public void handle(ResultCollector c) {
+					JsonArray out = new JsonArray();
+					for (int i = 0; i < queries.size(); i++) {
+						JsonObject r = columnar ? c.columnar(i) : new JsonObject().putArray("result", c.result(i));
+						out.add(r.putNumber("idx", i));
+					}
+					handler.handle(new JsonObject().putArray("results", out));
+				}
+			});
+			return;
+		}
+		JsonArray body = batchBody(queries);
+		if (logger.isDebugEnabled()) {
+			logger.debug(body.encode());
 		}
-		logger.debug(body.encode());
 		try {
 			sendRequest("/batch", body, new Handler<HttpClientResponse>() {
 				@Override
 				public void handle(final HttpClientResponse resp) {
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						streamResponse(resp, new Handler<ResultCollector>() {
+							@Override
+							public void handle(ResultCollector c) {
+								if (c.fields().getString("message") != null) {
+									handler.handle(c.fields());
+									return;
+								}
+								JsonArray out = new JsonArray();
+								for (int i = 0; i < queries.size(); i++) {
+									JsonObject r = columnar ? c.columnar(i) : new JsonObject().putArray("result", c.result(i));
+									out.add(r.putNumber("idx", i));
+								}
+								handler.handle(new JsonObject().putArray("results", out));
+							}
+						}, columnar, handler);
+						return;
+					}
 					resp.bodyHandler(new Handler<Buffer>() {
 
 						@Override
 						public void handle(Buffer b) {
 							logger.debug(b.toString());
-							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonArray json = new JsonArray(b.toString("UTF-8"));
-								JsonArray out = new JsonArray();
-								for (Object j : json) {
-									JsonObject qr = (JsonObject) j;
-									out.add(new JsonObject().putArray("result",
-											transformJson(qr.getObject("body", new JsonObject())))
-											.putNumber("idx", qr.getNumber("id")));
-								}
-								handler.handle(new JsonObject().putArray("results", out));
-							} else {
-								handler.handle(new JsonObject().putString("message",
-										resp.statusMessage() + " : " + b.toString()));
-							}
+							handler.handle(batchError(resp, b));
 						}
 					});
 				}
-			});
+			}, exceptionHandler(handler));
 		} catch (Neo4jConnectionException e) {
-			ExceptionUtils.exceptionToJson(e);
+			handler.handle(ExceptionUtils.exceptionToJson(e));
 		}
 	}
 
 	@Override
 	public void executeTransaction(JsonArray statements, Integer transactionId,
-								   boolean commit, final Handler<JsonObject> handler) {
-		String uri = "/transaction";
-		if (transactionId != null) {
-			uri += "/" +transactionId;
-		}
-		if (commit) {
-			uri += "/commit";
-		}
+								   boolean commit, final boolean columnar, Handler<JsonObject> resultHandler) {
+		final Handler<JsonObject> handler = expiring(resultHandler, transactionId);
 		try {
-			sendRequest(uri, new JsonObject().putArray("statements", statements), new Handler<HttpClientResponse>() {
+			sendRequest(transactionUri(transactionId, commit), transactionBody(statements), new Handler<HttpClientResponse>() {
 				@Override
 				public void handle(final HttpClientResponse resp) {
-					resp.bodyHandler(new Handler<Buffer>() {
-
-						@Override
-						public void handle(Buffer b) {
-							logger.debug(b.toString());
-							if (resp.statusCode() != 404 && resp.statusCode() != 500) {
-								JsonObject json = new JsonObject(b.toString("UTF-8"));
-								JsonArray results = json.getArray("results");
-								if (json.getArray("errors", new JsonArray()).size() == 0 &&
-										results != null) {
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						streamResponse(resp, new Handler<ResultCollector>() {
+							@Override
+							public void handle(ResultCollector c) {
+								JsonObject json = c.fields();
+								if (json.getArray("errors", new JsonArray()).size() == 0) {
 									JsonArray out = new JsonArray();
-									for (Object o : results) {
-										if (!(o instanceof JsonObject)) continue;
-										out.add(transformJson((JsonObject) o));
+									for (int i = 0; i < c.size(); i++) {
+										if (columnar) {
+											out.add(c.columnar(i));
+										} else {
+											out.add(c.result(i));
+										}
 									}
 									json.putArray("results", out);
 									String commit = json.getString("commit");
 									if (commit != null) {
-										String[] c = commit.split("/");
-										if (c.length > 2) {
-											json.putNumber("transactionId", Integer.parseInt(c[c.length - 2]));
+										String[] cs = commit.split("/");
+										if (cs.length > 2) {
+											json.putNumber("transactionId", Integer.parseInt(cs[cs.length - 2]));
 										}
 									}
 									json.removeField("errors");
 									handler.handle(json);
 								} else {
-									handler.handle(new JsonObject().putString("message",
-											json.getArray("errors", new JsonArray()).encode()));
+									JsonArray errors = json.getArray("errors");
+									handler.handle(new JsonObject().putString("message", errors.encode())
+											.putString("exception", ((JsonObject) errors.get(0)).getString("code")));
 								}
-							} else {
-								handler.handle(new JsonObject().putString("message",
-										resp.statusMessage() + " : " + b.toString()));
 							}
+						}, columnar, handler);
+						return;
+					}
+					resp.bodyHandler(new Handler<Buffer>() {
+
+						@Override
+						public void handle(Buffer b) {
+							logger.debug(b.toString());
+							handler.handle(new JsonObject().putString("message",
+									resp.statusMessage() + " : " + b.toString()));
 						}
 					});
 				}
-			});
+			}, exceptionHandler(handler));
+		} catch (Neo4jConnectionException e) {
+			handler.handle(ExceptionUtils.exceptionToJson(e));
+		}
+	}
+
+	@Override
+	public void executeEncoded(String query, JsonObject params, boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		execute(query, params, columnar, encode(handler, errorHandler));
+	}
+
+	@Override
+	public void executeBatchEncoded(JsonArray queries, boolean columnar,
+			Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		executeBatch(queries, columnar, encode(handler, errorHandler));
+	}
+
+	@Override
+	public void executeTransactionEncoded(JsonArray statements, Integer transactionId, boolean commit,
+			boolean columnar, Handler<Buffer> handler, Handler<JsonObject> errorHandler) {
+		executeTransaction(statements, transactionId, commit, columnar, encode(handler, errorHandler));
+	}
+
+	/**
+	 * The REST results are transformed before being replied, so they are encoded from the JsonObject.
+	 */
+	private static Handler<JsonObject> encode(final Handler<Buffer> handler, final Handler<JsonObject> errorHandler) {
+		return new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject res) {
+				if (res.getString("message") != null) {
+					errorHandler.handle(res);
+				} else {
+					handler.handle(new Buffer(res.putString("status", "ok").encode()));
+				}
+			}
+		};
+	}
+
+	@Override
+	public ResultCursor executeCursor(String query, JsonObject params) {
+		JsonObject body = new JsonObject()
+				.putString("query", query)
+				.putObject("params", (params != null) ? params : new JsonObject());
+		final Neo4jRestCursor cursor = expiring(new Neo4jRestCursor(0, bytesIn), null);
+		try {
+			sendRequest("/cypher", body, true, cursorResponseHandler(cursor), cursorExceptionHandler(cursor));
 		} catch (Neo4jConnectionException e) {
-			ExceptionUtils.exceptionToJson(e);
+			cursor.error(ExceptionUtils.exceptionToJson(e));
 		}
+		return cursor;
+	}
+
+	@Override
+	public ResultCursor executeTransactionCursor(JsonArray statements, Integer transactionId, boolean commit) {
+		final Neo4jRestCursor cursor = expiring(new Neo4jRestCursor(Math.max(statements.size() - 1, 0), bytesIn),
+				transactionId);
+		try {
+			sendRequest(transactionUri(transactionId, commit), transactionBody(statements),
+					cursorResponseHandler(cursor), cursorExceptionHandler(cursor));
+		} catch (Neo4jConnectionException e) {
+			cursor.error(ExceptionUtils.exceptionToJson(e));
+		}
+		return cursor;
+	}
+
+	private Handler<HttpClientResponse> cursorResponseHandler(final Neo4jRestCursor cursor) {
+		return new Handler<HttpClientResponse>() {
+			@Override
+			public void handle(final HttpClientResponse resp) {
+				if (resp.statusCode() == 200 || resp.statusCode() == 201) {
+					if (resp instanceof TrackedResponse) {
+						cursor.doneHandler(new Handler<Void>() {
+							@Override
+							public void handle(Void v) {
+								((TrackedResponse) resp).release();
+							}
+						});
+					}
+					cursor.stream(resp);
+					return;
+				}
+				resp.bodyHandler(new Handler<Buffer>() {
+					@Override
+					public void handle(Buffer b) {
+						cursor.error(new JsonObject().putString("message",
+								resp.statusMessage() + " : " + b.toString()));
+					}
+				});
+			}
+		};
+	}
+
+	private Handler<Throwable> cursorExceptionHandler(final Neo4jRestCursor cursor) {
+		return new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				cursor.error(ExceptionUtils.exceptionToJson(t));
+			}
+		};
+	}
+
+	static JsonObject statement(String query, JsonObject params, JsonArray resultDataContents) {
+		return new JsonObject()
+				.putString("statement", query)
+				.putObject("parameters", (params != null) ? params : new JsonObject())
+				.putArray("resultDataContents", resultDataContents)
+				.putBoolean("includeStats", false);
+	}
+
+	static JsonObject transactionBody(JsonArray statements) {
+		return new JsonObject().putArray("statements", statements);
+	}
+
+	static JsonObject cypherBody(String query, JsonObject params) {
+		return new JsonObject()
+				.putString("query", query)
+				.putObject("params", params);
+	}
+
+	static JsonArray batchBody(JsonArray queries) {
+		JsonArray body = new JsonArray();
+		int i = 0;
+		for (Object q : queries) {
+			JsonObject query = new JsonObject()
+					.putString("method", "POST")
+					.putString("to", "/cypher")
+					.putObject("body", (JsonObject) q)
+					.putNumber("id", i++);
+			body.add(query);
+		}
+		return body;
+	}
+
+	/**
+	 * Sends the statements in one request to /transaction/commit. Errors are replied as the
+	 * message and code of the first error, like the errors of /cypher.
+	 */
+	private void commit(JsonArray statements, boolean checkReadOnly, final boolean columnar,
+			final Handler<JsonObject> handler, final Handler<ResultCollector> resultsHandler) {
+		try {
+			sendRequest("/transaction/commit", transactionBody(statements), checkReadOnly,
+					new Handler<HttpClientResponse>() {
+				@Override
+				public void handle(final HttpClientResponse resp) {
+					if (resp.statusCode() != 404 && resp.statusCode() != 500) {
+						streamResponse(resp, new Handler<ResultCollector>() {
+							@Override
+							public void handle(ResultCollector c) {
+								JsonArray errors = c.fields().getArray("errors");
+								if (errors != null && errors.size() > 0) {
+									JsonObject error = errors.get(0);
+									handler.handle(new JsonObject()
+											.putString("message", error.getString("message"))
+											.putString("exception", error.getString("code")));
+									return;
+								}
+								resultsHandler.handle(c);
+							}
+						}, columnar, handler);
+						return;
+					}
+					resp.bodyHandler(new Handler<Buffer>() {
+
+						@Override
+						public void handle(Buffer b) {
+							logger.debug(b.toString());
+							handler.handle(new JsonObject().putString("message",
+									resp.statusMessage() + " : " + b.toString()));
+						}
+					});
+				}
+			}, exceptionHandler(handler));
+		} catch (Neo4jConnectionException e) {
+			handler.handle(ExceptionUtils.exceptionToJson(e));
+		}
+	}
+
+	/**
+	 * Error of a failed /batch, keeping the exception of the failed job when Neo4j gives it.
+	 */
+	private static JsonObject batchError(HttpClientResponse resp, Buffer b) {
+		try {
+			JsonObject error = new JsonObject(b.toString("UTF-8"));
+			if (error.getString("message") != null) {
+				return new JsonObject()
+						.putString("message", error.getString("message"))
+						.putString("exception", error.getString("exception"))
+						.putString("fullname", error.getString("fullname"));
+			}
+		} catch (DecodeException e) {
+			// not a Neo4j error
+		}
+		return new JsonObject().putString("message", resp.statusMessage() + " : " + b.toString());
+	}
+
+	private Handler<Throwable> exceptionHandler(final Handler<JsonObject> handler) {
+		return new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				handler.handle(ExceptionUtils.exceptionToJson(t));
+			}
+		};
+	}
+
+	private String transactionUri(Integer transactionId, boolean commit) {
+		String uri = "/transaction";
+		if (transactionId != null) {
+			uri += "/" +transactionId;
+		}
+		if (commit) {
+			uri += "/commit";
+		}
+		return uri;
 	}
 
 	@Override
 	public void resetTransactionTimeout(int transactionId, Handler<JsonObject> handler) {
-		executeTransaction(new JsonArray(), transactionId, false, handler);
+		executeTransaction(new JsonArray(), transactionId, false, false, handler);
 	}
 
 	@Override
 	public void rollbackTransaction(int transactionId, final Handler<JsonObject> handler) {
 		try {
-			HttpClientRequest req = nodeManager.getClient().delete(
+			HttpClientRequest req = request(nodeManager.getClient(), "DELETE",
 					basePath + "/transaction/" + transactionId, new Handler<HttpClientResponse>() {
 				@Override
 				public void handle(final HttpClientResponse resp) {
@@ -261,18 +685,18 @@ public class Neo4jRest implements GraphDatabase {
 						}
 					});
 				}
-			});
+			}, exceptionHandler(handler));
 			req.headers().add("Accept", "application/json; charset=UTF-8");
 			req.end();
 		} catch (Neo4jConnectionException e) {
-			ExceptionUtils.exceptionToJson(e);
+			handler.handle(ExceptionUtils.exceptionToJson(e));
 		}
 	}
 
 	@Override
 	public void unmanagedExtension(String method, String uri, String body, final Handler<JsonObject> handler) {
 		try {
-			HttpClientRequest req = nodeManager.getClient().request(method, uri,
+			HttpClientRequest req = request(nodeManager.getClient(), method, uri,
 					new Handler<HttpClientResponse>() {
 				@Override
 				public void handle(final HttpClientResponse response) {
@@ -288,15 +712,35 @@ public class Neo4jRest implements GraphDatabase {
 						}
 					});
 				}
-			});
+			}, exceptionHandler(handler));
 			if (body != null) {
-				req.end(body);
+				Buffer buffer = new Buffer(body);
+				bytesOut.addAndGet(buffer.length());
+				req.end(buffer);
 			} else {
 				req.end();
 			}
 		} catch (Neo4jConnectionException e) {
-			ExceptionUtils.exceptionToJson(e);
+			handler.handle(ExceptionUtils.exceptionToJson(e));
+		}
+	}
+
+	@Override
+	public JsonObject stats() {
+		JsonObject stats = new JsonObject()
+				.putNumber("bytesIn", bytesIn.get())
+				.putNumber("bytesOut", bytesOut.get())
+				.putArray("nodes", nodeManager.stats());
+		JsonObject parking = nodeManager.parkingStats();
+		if (parking != null) {
+			stats.putObject("failoverParking", parking);
+		}
+		if (gzipMinSize >= 0) {
+			stats.putObject("gzip", new JsonObject()
+					.putNumber("uncompressed", gzipBytesIn.get())
+					.putNumber("compressed", gzipBytesOut.get()));
 		}
+		return stats;
 	}
 
 	@Override
@@ -304,76 +748,448 @@ public class Neo4jRest implements GraphDatabase {
 		nodeManager.close();
 	}
 
-	private JsonArray transformJson(JsonObject json) {
-		final JsonArray columns = json.getArray("columns");
-		final JsonArray data = json.getArray("data");
-		final JsonArray out = new JsonArray();
+	private void streamResponse(final HttpClientResponse resp, final Handler<ResultCollector> endHandler,
+			boolean columnar, final Handler<JsonObject> handler) {
+		final ResultCollector collector = new ResultCollector(columnar);
+		final JsonStreamParser parser = new JsonStreamParser(new Neo4jResultParser(collector));
+		resp.dataHandler(new Handler<Buffer>() {
+			@Override
+			public void handle(Buffer b) {
+				bytesIn.addAndGet(b.length());
+				if (collector.isFailed()) {
+					return;
+				}
+				try {
+					parser.handle(b);
+				} catch (DecodeException e) {
+					if (collector.fail()) {
+						handler.handle(ExceptionUtils.exceptionToJson(e));
+					}
+				}
+			}
+		});
+		resp.endHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				if (collector.isFailed()) {
+					return;
+				}
+				try {
+					parser.end();
+				} catch (DecodeException e) {
+					collector.fail();
+					handler.handle(ExceptionUtils.exceptionToJson(e));
+					return;
+				}
+				endHandler.handle(collector);
+			}
+		});
+		resp.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				if (collector.fail()) {
+					handler.handle(ExceptionUtils.exceptionToJson(t));
+				}
+			}
+		});
+	}
 
-		if (data != null && columns != null) {
-			for (Object r: data) {
-				JsonArray row;
-				if (r instanceof JsonArray) {
-					row = (JsonArray) r;
-				} else if (r instanceof JsonObject) {
-					row = ((JsonObject) r).getArray("row");
+	private void sendRequest(String path, JsonElement body, final Handler<HttpClientResponse> handler,
+			final Handler<Throwable> exceptionHandler) throws Neo4jConnectionException {
+		sendRequest(path, body, false, handler, exceptionHandler);
+	}
+
+	private void sendRequest(String path, JsonElement body, boolean checkReadOnly,
+			final Handler<HttpClientResponse> handler, final Handler<Throwable> exceptionHandler)
+			throws Neo4jConnectionException {
+		final RequestBody encoded = encode(body, gzipMinSize, gzipLevel);
+		if (checkReadOnly && ro) {
+			if (isRead(body)) {
+				HttpClient slave = nodeManager.getSlaveClient();
+				if (hedgeReads) {
+					new HedgedRead(basePath + path, encoded, handler, exceptionHandler).send(slave);
 				} else {
-					continue;
-				}
-				JsonObject outRow = new JsonObject();
-				out.addObject(outRow);
-				for (int j = 0; j < row.size(); j++) {
-					Object value = row.get(j);
-					if (value == null) {
-						outRow.putValue((String) columns.get(j), null);
-					} else if (value instanceof String) {
-						outRow.putString((String) columns.get(j), (String) value);
-					} else if (value instanceof JsonArray) {
-						outRow.putArray((String) columns.get(j), (JsonArray) value);
-					} else if (value instanceof JsonObject) {
-						outRow.putObject((String) columns.get(j), (JsonObject) value);
-					} else if (value instanceof Boolean) {
-						outRow.putBoolean((String) columns.get(j), (Boolean) value);
-					} else if (value instanceof Number) {
-						outRow.putNumber((String) columns.get(j), (Number) value);
-					} else {
-						outRow.putString((String) columns.get(j), value.toString());
+					post(slave, basePath + path, encoded, handler, exceptionHandler);
+				}
+				return;
+			}
+		}
+		final String uri = basePath + path;
+		nodeManager.whenMaster(new Handler<HttpClient>() {
+			@Override
+			public void handle(HttpClient master) {
+				post(master, uri, encoded, handler, exceptionHandler);
+			}
+		}, exceptionHandler);
+	}
+
+	private static boolean isRead(JsonElement body) {
+		if (!body.isObject()) {
+			return false;
+		}
+		String query = body.asObject().getString("query");
+		if (query != null) {
+			return !CypherClassifier.isWrite(query);
+		}
+		JsonArray statements = body.asObject().getArray("statements");
+		if (statements == null || statements.size() == 0) {
+			return false;
+		}
+		for (Object o : statements) {
+			String statement = (o instanceof JsonObject) ? ((JsonObject) o).getString("statement") : null;
+			if (statement == null || CypherClassifier.isWrite(statement)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void post(final HttpClient client, final String uri, final RequestBody body,
+			final Handler<HttpClientResponse> handler, final Handler<Throwable> exceptionHandler) {
+		nodeManager.whenAvailable(client, lane, new Handler<Long>() {
+			@Override
+			public void handle(Long waited) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (queryTimeout > 0 && remaining <= 0) {
+					nodeManager.requestCancelled(client);
+					exceptionHandler.handle(new TimeoutException("The query timeout of " + queryTimeout +
+							"ms has been exceeded while waiting for a connection."));
+					return;
+				}
+				long timeout = requestTimeout;
+				if (timeout > 0) {
+					timeout -= waited / 1000000;
+					if (timeout <= 0) {
+						nodeManager.requestExpired(client);
+						exceptionHandler.handle(new TimeoutException("The timeout period of " + requestTimeout +
+								"ms has been exceeded while waiting for a connection."));
+						return;
 					}
 				}
+				HttpClientRequest req = request(client, "POST", uri, timeout, waited, handler, exceptionHandler);
+				req.headers()
+						.add("Content-Type", "application/json")
+						.add("Accept", "application/json; charset=UTF-8");
+				if (queryTimeout > 0) {
+					// enforced by the execution guard of the server (execution_guard_enabled)
+					req.headers().add("max-execution-time", Long.toString(remaining));
+				}
+				if (body.gzipped) {
+					gzipBytesIn.addAndGet(body.length);
+					gzipBytesOut.addAndGet(body.bytes.length);
+					req.headers().add("Content-Encoding", "gzip");
+				}
+				bytesOut.addAndGet(body.bytes.length);
+				req.end(new Buffer(body.bytes));
+			}
+		}, exceptionHandler);
+	}
+
+	/**
+	 * Encodes the body of a request once, before it waits for a connection : hedged reads send
+	 * the same bytes twice. The JSON is gzipped if gzipMinSize >= 0 and it has at least gzipMinSize bytes.
+	 */
+	static RequestBody encode(JsonElement body, int gzipMinSize, int gzipLevel) {
+		String json = body.isArray() ? body.asArray().encode() : body.asObject().encode();
+		byte[] bytes = json.getBytes(UTF8);
+		if (gzipMinSize >= 0 && bytes.length >= gzipMinSize) {
+			byte[] compressed = gzip(bytes, gzipLevel);
+			if (compressed != null) {
+				return new RequestBody(compressed, bytes.length, true);
 			}
 		}
-		return out;
+		return new RequestBody(bytes, bytes.length, false);
 	}
 
-	private void sendRequest(String path, JsonElement body, final Handler<HttpClientResponse> handler)
-			throws Neo4jConnectionException {
-		sendRequest(path, body, false, handler);
+	/**
+	 * Bytes sent, and length of the JSON before compression.
+	 */
+	static final class RequestBody {
+
+		final byte[] bytes;
+		final int length;
+		final boolean gzipped;
+
+		private RequestBody(byte[] bytes, int length, boolean gzipped) {
+			this.bytes = bytes;
+			this.length = length;
+			this.gzipped = gzipped;
+		}
+
 	}
 
-	private void sendRequest(String path, JsonElement body, boolean checkReadOnly,
-			final Handler<HttpClientResponse> handler) throws Neo4jConnectionException {
-		HttpClient client = null;
-		if (checkReadOnly && ro) {
-			String query = ((JsonObject) body).getString("query");
-			if (query != null) {
-				Matcher m = writingClausesPattern.matcher(query);
-				if (!m.find()) {
-					client = nodeManager.getSlaveClient();
+	private static byte[] gzip(byte[] bytes, final int level) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+			{
+				def.setLevel(level);
+			}
+		}) {
+			gzip.write(bytes);
+		} catch (IOException e) {
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Creates a request which reports its latency and its transport errors (timeouts included)
+	 * to the node manager, feeding slave selection and the node circuit breaker. The slot of the
+	 * request is held until the response body has been read (see {@link TrackedResponse}).
+	 */
+	private HttpClientRequest request(final HttpClient c, String method, String uri,
+			final Handler<HttpClientResponse> handler, final Handler<Throwable> exceptionHandler) {
+		return request(c, method, uri, requestTimeout, 0l, handler, exceptionHandler);
+	}
+
+	/**
+	 * @param waited time spent waiting for a slot of the node, in nanoseconds
+	 */
+	private HttpClientRequest request(final HttpClient c, String method, String uri, long timeout,
+			final long waited, final Handler<HttpClientResponse> handler, final Handler<Throwable> exceptionHandler) {
+		final long start = System.nanoTime();
+		final boolean[] ended = {false};
+		nodeManager.requestStarted(c, lane);
+		HttpClientRequest req = c.request(method, uri, new Handler<HttpClientResponse>() {
+			@Override
+			public void handle(HttpClientResponse resp) {
+				if (ended[0]) {
+					handler.handle(resp);
+					return;
+				}
+				ended[0] = true;
+				if (resp.statusCode() >= 502 && resp.statusCode() <= 504) {
+					nodeManager.requestFailed(c, lane);
+					handler.handle(resp);
+				} else {
+					handler.handle(new TrackedResponse(resp, c, waited, start));
 				}
 			}
+		});
+		req.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				if (ended[0]) {
+					return;
+				}
+				ended[0] = true;
+				nodeManager.requestFailed(c, lane);
+				logger.error(t.getMessage(), t);
+				exceptionHandler.handle(t);
+			}
+		});
+		if (timeout > 0) {
+			req.setTimeout(timeout);
 		}
-		if (client == null) {
-			client = nodeManager.getClient();
+		return req;
+	}
+
+	/**
+	 * Response which ends its request for the node manager once its body has been read or has failed,
+	 * so the slot stays taken and the latency covers the whole body. A cursor can end it earlier
+	 * with {@link #release()} when it is closed or fails.
+	 */
+	private class TrackedResponse implements HttpClientResponse {
+
+		private final HttpClientResponse resp;
+		private final HttpClient client;
+		private final long waited;
+		private final long start;
+		private Handler<Void> endHandler;
+		private Handler<Throwable> exceptionHandler;
+		private boolean released;
+
+		private TrackedResponse(HttpClientResponse resp, final HttpClient client, long waited, long start) {
+			this.resp = resp;
+			this.client = client;
+			this.waited = waited;
+			this.start = start;
+			resp.endHandler(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					release();
+					if (endHandler != null) {
+						endHandler.handle(v);
+					}
+				}
+			});
+			resp.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					if (!released) {
+						released = true;
+						nodeManager.requestFailed(client, lane);
+					}
+					if (exceptionHandler != null) {
+						exceptionHandler.handle(t);
+					}
+				}
+			});
 		}
-		HttpClientRequest req = client.post(basePath + path, handler);
-		req.headers()
-				.add("Content-Type", "application/json")
-				.add("Accept", "application/json; charset=UTF-8");
 
-		if (body.isArray()) {
-			req.end(body.asArray().encode());
-		} else {
-			req.end(body.asObject().encode());
+		private void release() {
+			if (!released) {
+				released = true;
+				nodeManager.requestEnded(client, lane, waited, System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public int statusCode() {
+			return resp.statusCode();
+		}
+
+		@Override
+		public String statusMessage() {
+			return resp.statusMessage();
+		}
+
+		@Override
+		public MultiMap headers() {
+			return resp.headers();
+		}
+
+		@Override
+		public MultiMap trailers() {
+			return resp.trailers();
+		}
+
+		@Override
+		public List<String> cookies() {
+			return resp.cookies();
+		}
+
+		@Override
+		public HttpClientResponse bodyHandler(final Handler<Buffer> handler) {
+			final Buffer body = new Buffer();
+			dataHandler(new Handler<Buffer>() {
+				@Override
+				public void handle(Buffer b) {
+					body.appendBuffer(b);
+				}
+			});
+			endHandler(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					handler.handle(body);
+				}
+			});
+			return this;
+		}
+
+		@Override
+		public NetSocket netSocket() {
+			return resp.netSocket();
+		}
+
+		@Override
+		public HttpClientResponse endHandler(Handler<Void> handler) {
+			this.endHandler = handler;
+			return this;
 		}
+
+		@Override
+		public HttpClientResponse dataHandler(Handler<Buffer> handler) {
+			resp.dataHandler(handler);
+			return this;
+		}
+
+		@Override
+		public HttpClientResponse pause() {
+			resp.pause();
+			return this;
+		}
+
+		@Override
+		public HttpClientResponse resume() {
+			resp.resume();
+			return this;
+		}
+
+		@Override
+		public HttpClientResponse exceptionHandler(Handler<Throwable> handler) {
+			this.exceptionHandler = handler;
+			return this;
+		}
+
+	}
+
+	/**
+	 * Read sent to a slave and, if it has not answered once the p95 read latency is elapsed,
+	 * sent again to another slave. The first response wins, the other one is discarded.
+	 */
+	private class HedgedRead {
+
+		private final String uri;
+		private final RequestBody body;
+		private final Handler<HttpClientResponse> handler;
+		private final Handler<Throwable> exceptionHandler;
+		private int sent;
+		private int failed;
+		private boolean done;
+		private long timerId = -1;
+
+		private HedgedRead(String uri, RequestBody body, Handler<HttpClientResponse> handler,
+				Handler<Throwable> exceptionHandler) {
+			this.uri = uri;
+			this.body = body;
+			this.handler = handler;
+			this.exceptionHandler = exceptionHandler;
+		}
+
+		private void send(final HttpClient first) {
+			request(first);
+			final long p95 = readLatencies.value();
+			if (p95 < 0) {
+				return;
+			}
+			timerId = vertx.setTimer(Math.max(hedgeMinDelay, p95 / 1000000), new Handler<Long>() {
+				@Override
+				public void handle(Long event) {
+					timerId = -1;
+					if (done) {
+						return;
+					}
+					HttpClient second = nodeManager.getOtherSlaveClient(first);
+					if (second != null) {
+						request(second);
+					}
+				}
+			});
+		}
+
+		private void request(HttpClient client) {
+			final long start = System.nanoTime();
+			sent++;
+			post(client, uri, body, new Handler<HttpClientResponse>() {
+				@Override
+				public void handle(HttpClientResponse resp) {
+					readLatencies.add(System.nanoTime() - start);
+					if (done) {
+						return;
+					}
+					finish();
+					handler.handle(resp);
+				}
+			}, new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					if (done || ++failed < sent) {
+						return;
+					}
+					finish();
+					exceptionHandler.handle(t);
+				}
+			});
+		}
+
+		private void finish() {
+			done = true;
+			if (timerId >= 0) {
+				vertx.cancelTimer(timerId);
+			}
+		}
+
 	}
 
 }
@@ -0,0 +1,268 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.wseduc.neo4j.exception.ExceptionUtils;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Cursor over a streamed REST response. Rows of the last result are queued as they
+ * are parsed and the HTTP response is paused while a page is waiting to be fetched.
+ */
+class Neo4jRestCursor implements ResultCursor, Neo4jResultParser.ResultHandler {
+
+	private final int lastResult;
+	private final AtomicLong bytesIn;
+	private final ResultCollector previous = new ResultCollector();
+	private final Deque<JsonObject> rows = new ArrayDeque<>();
+	private JsonArray columns;
+	private HttpClientResponse resp;
+	private boolean paused;
+	private boolean ended;
+	private boolean closed;
+	private boolean first = true;
+	private JsonObject error;
+	private int prefetch = 1;
+	private int pendingSize;
+	private Handler<JsonObject> pending;
+	private final List<Handler<Void>> doneHandlers = new ArrayList<>();
+	private boolean done;
+
+	Neo4jRestCursor(int lastResult, AtomicLong bytesIn) {
+		this.lastResult = lastResult;
+		this.bytesIn = bytesIn;
+	}
+
+	void stream(HttpClientResponse resp) {
+		this.resp = resp;
+		final JsonStreamParser parser = new JsonStreamParser(new Neo4jResultParser(this));
+		resp.dataHandler(new Handler<Buffer>() {
+			@Override
+			public void handle(Buffer b) {
+				bytesIn.addAndGet(b.length());
+				if (error != null) {
+					return;
+				}
+				try {
+					parser.handle(b);
+				} catch (DecodeException e) {
+					error(ExceptionUtils.exceptionToJson(e));
+				}
+			}
+		});
+		resp.endHandler(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				if (error != null) {
+					return;
+				}
+				try {
+					parser.end();
+				} catch (DecodeException e) {
+					error(ExceptionUtils.exceptionToJson(e));
+					return;
+				}
+				JsonArray errors = previous.fields().getArray("errors");
+				if (errors != null && errors.size() > 0) {
+					error(new JsonObject().putString("message", errors.encode()));
+					return;
+				}
+				ended = true;
+				done();
+				dispatch();
+			}
+		});
+		resp.exceptionHandler(new Handler<Throwable>() {
+			@Override
+			public void handle(Throwable t) {
+				error(ExceptionUtils.exceptionToJson(t));
+			}
+		});
+	}
+
+	void error(JsonObject error) {
+		if (this.error != null) {
+			return;
+		}
+		this.error = error;
+		rows.clear();
+		resume();
+		done();
+		dispatch();
+	}
+
+	/**
+	 * Adds a handler called once, when the response has ended, failed, or the cursor is closed.
+	 * It is called at once if that has already happened.
+	 */
+	void doneHandler(Handler<Void> handler) {
+		if (done) {
+			handler.handle(null);
+		} else {
+			doneHandlers.add(handler);
+		}
+	}
+
+	private void done() {
+		if (done) {
+			return;
+		}
+		done = true;
+		for (Handler<Void> handler : doneHandlers) {
+			handler.handle(null);
+		}
+		doneHandlers.clear();
+	}
+
+	/**
+	 * @return the id of the transaction left open by the statements, once the response gives it
+	 */
+	Integer transactionId() {
+		String commit = previous.fields().getString("commit");
+		if (commit != null) {
+			String[] c = commit.split("/");
+			if (c.length > 2) {
+				return Integer.parseInt(c[c.length - 2]);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void columns(int result, JsonArray c) {
+		if (result == lastResult) {
+			columns = c;
+		} else {
+			previous.columns(result, c);
+		}
+	}
+
+	@Override
+	public void row(int result, JsonArray row) {
+		if (result != lastResult) {
+			previous.row(result, row);
+			return;
+		}
+		if (closed || columns == null) {
+			return;
+		}
+		rows.add(ResultCollector.transformRow(columns, row));
+		if (pending != null && rows.size() >= pendingSize) {
+			dispatch();
+		}
+		if (rows.size() >= prefetch) {
+			pause();
+		}
+	}
+
+	@Override
+	public void field(String name, Object value) {
+		previous.field(name, value);
+	}
+
+	@Override
+	public void fetch(int size, Handler<JsonObject> handler) {
+		pending = handler;
+		pendingSize = Math.max(size, 1);
+		prefetch = pendingSize;
+		if (error != null || ended || rows.size() >= pendingSize) {
+			dispatch();
+		} else {
+			resume();
+		}
+	}
+
+	private void dispatch() {
+		if (pending == null) {
+			return;
+		}
+		final Handler<JsonObject> handler = pending;
+		pending = null;
+		if (error != null) {
+			handler.handle(error);
+			return;
+		}
+		JsonArray page = new JsonArray();
+		while (page.size() < pendingSize && !rows.isEmpty()) {
+			page.addObject(rows.poll());
+		}
+		JsonObject res = new JsonObject().putArray("result", page)
+				.putBoolean("hasMore", !(ended && rows.isEmpty()));
+		if (first) {
+			first = false;
+			if (lastResult > 0) {
+				JsonArray results = new JsonArray();
+				for (int i = 0; i < lastResult; i++) {
+					results.add(previous.result(i));
+				}
+				res.putArray("results", results);
+			}
+			Integer transactionId = transactionId();
+			if (transactionId != null) {
+				res.putNumber("transactionId", transactionId);
+			}
+		}
+		if (!ended && rows.size() < prefetch) {
+			resume();
+		}
+		handler.handle(res);
+	}
+
+	private void pause() {
+		if (resp != null && !paused) {
+			paused = true;
+			resp.pause();
+		}
+	}
+
+	private void resume() {
+		if (resp != null && paused) {
+			paused = false;
+			resp.resume();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		rows.clear();
+		resume();
+		done();
+		if (pending != null) {
+			Handler<JsonObject> handler = pending;
+			pending = null;
+			handler.handle(new JsonObject().putString("message", "Cursor closed."));
+		}
+	}
+
+}
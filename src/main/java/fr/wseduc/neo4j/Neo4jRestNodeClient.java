@@ -19,131 +19,509 @@
 package fr.wseduc.neo4j;
 
 import fr.wseduc.neo4j.exception.Neo4jConnectionException;
+import fr.wseduc.neo4j.exception.Neo4jOverloadedException;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
 import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
 
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Random;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Neo4jRestNodeClient {
 
 	private final Vertx vertx;
 	private final HttpClient[] clients;
-	private final AtomicInteger master = new AtomicInteger(0);
-	private final CopyOnWriteArrayList<Integer> slaves;
-	private final long checkTimerId;
+	private final TopologyMonitor monitor;
+	private final Handler<Message<String>> topologyHandler;
+	private Topology seen = Topology.SINGLE;
 	private final Random rnd;
+	private final SlaveSelection slaveSelection;
+	private final AtomicInteger[] inFlight;
+	private final AtomicLongArray latencies;
+	private final CircuitBreaker[] breakers;
+	private final LatencyHistogram[] histograms;
+	private final AtomicLong[] errors;
+	private final PriorityScheduler.Lanes lanes;
+	private final PriorityScheduler[] schedulers;
+	private final AtomicIntegerArray warmed;
+	private final String[] warmPaths;
+	private final int poolSize;
+	private final int pipelining;
+	private final int capacity;
+	private final int prewarmConnections;
+	private final Deque<Parked> parked = new ArrayDeque<>();
+	private final int parkingMaxSize;
+	private final long parkingMaxTime;
+	private final AtomicLong parkTimeouts = new AtomicLong();
+	private static final double EWMA_WEIGHT = 0.3;
 	private static final Logger logger = LoggerFactory.getLogger(Neo4jRestNodeClient.class);
 
-	public Neo4jRestNodeClient(URI[] uris, Vertx vertx, long delay, int poolSize, boolean keepAlive) {
+	public enum SlaveSelection { RANDOM, LEAST_OUTSTANDING, EWMA }
+
+	public Neo4jRestNodeClient(URI[] uris, Vertx vertx, long delay, int poolSize, boolean keepAlive,
+			JsonObject config) {
 		this.vertx = vertx;
+		this.slaveSelection = SlaveSelection.valueOf(
+				config.getString("slave-selection", "random").toUpperCase().replace('-', '_'));
+		JsonObject breakerConfig = config.getObject("circuit-breaker", new JsonObject());
+		inFlight = new AtomicInteger[uris.length];
+		latencies = new AtomicLongArray(uris.length);
+		breakers = new CircuitBreaker[uris.length];
+		histograms = new LatencyHistogram[uris.length];
+		errors = new AtomicLong[uris.length];
+		lanes = new PriorityScheduler.Lanes(config.getArray("priority-lanes"));
+		JsonObject limitConfig = config.getObject("concurrency-limit");
+		schedulers = new PriorityScheduler[uris.length];
+		warmed = new AtomicIntegerArray(uris.length);
+		warmPaths = new String[uris.length];
+		this.poolSize = poolSize;
+		this.pipelining = Math.max(config.getInteger("pipelining", 1), 1);
+		this.capacity = poolSize * pipelining;
+		this.prewarmConnections = Math.min(config.getInteger("prewarm-connections", 0), poolSize);
+		for (int i = 0; i < uris.length; i++) {
+			inFlight[i] = new AtomicInteger();
+			histograms[i] = new LatencyHistogram();
+			errors[i] = new AtomicLong();
+			schedulers[i] = new PriorityScheduler(lanes, capacity, inFlight[i],
+					(limitConfig != null) ? new ConcurrencyLimit(limitConfig, capacity) : null);
+			warmPaths[i] = (uris[i].getPath() != null && !uris[i].getPath().isEmpty()) ? uris[i].getPath() : "/";
+			breakers[i] = new CircuitBreaker(breakerConfig.getInteger("failures", 5),
+					breakerConfig.getLong("reset", 10000l));
+		}
+		JsonObject parkingConfig = config.getObject("failover-parking", new JsonObject());
+		this.parkingMaxSize = parkingConfig.getInteger("max-size", 1000);
+		this.parkingMaxTime = parkingConfig.getLong("max-time", 10000l);
+		final boolean gzipResponses = config.getObject("gzip", new JsonObject()).getBoolean("responses", false);
 		clients = new HttpClient[uris.length];
 		for (int i = 0; i < uris.length; i++) {
 			clients[i] = vertx.createHttpClient()
 					.setHost(uris[i].getHost())
 					.setPort(uris[i].getPort())
 					.setMaxPoolSize(poolSize)
-					.setKeepAlive(keepAlive);
+					.setKeepAlive(keepAlive)
+					.setPipelining(pipelining > 1)
+					.setTryUseCompression(gzipResponses);
 		}
 
+		rnd = new Random();
 		if (uris.length > 1) {
-			slaves = new CopyOnWriteArrayList<>();
-			checkHealth();
-			checkTimerId = vertx.setPeriodic(delay, new Handler<Long>() {
+			monitor = TopologyMonitor.acquire(uris, vertx, delay);
+			topologyHandler = new Handler<Message<String>>() {
 				@Override
-				public void handle(Long event) {
-					checkHealth();
+				public void handle(Message<String> event) {
+					topologyChanged();
 				}
-			});
+			};
+			vertx.eventBus().registerLocalHandler(monitor.address(), topologyHandler);
+			topologyChanged();
 		} else {
-			slaves = null;
-			checkTimerId = -1;
+			monitor = null;
+			topologyHandler = null;
+			nodeUp(0, true);
 		}
-		rnd = new Random();
 	}
 
-	private void checkHealth() {
+	private Topology topology() {
+		return (monitor != null) ? monitor.topology() : Topology.SINGLE;
+	}
+
+	/**
+	 * Prewarms the nodes which became master or slave and sends the parked requests to a new master.
+	 * Called on the context of this instance.
+	 */
+	private void topologyChanged() {
+		final Topology t = topology();
+		final Topology previous = seen;
+		seen = t;
 		for (int i = 0; i < clients.length; i++) {
-			final int idx = i;
-			HttpClient client = clients[i];
-			if (client != null) {
-				client.getNow("/db/manage/server/ha/available", new Handler<HttpClientResponse>() {
-					@Override
-					public void handle(HttpClientResponse resp) {
-						if (resp.statusCode() == 200) {
-							resp.bodyHandler(new Handler<Buffer>() {
-								@Override
-								public void handle(Buffer body) {
-									if ("master".equals(body.toString())) {
-										masterNode(idx);
-									} else {
-										slaveNode(idx);
-									}
-								}
-							});
-						} else {
-							unavailableNode(idx);
-						}
-					}
-				});
+			if (t.master() == i) {
+				nodeUp(i, previous.master() != i);
+			} else if (t.isSlave(i)) {
+				nodeUp(i, !previous.isSlave(i));
 			} else {
-				unavailableNode(idx);
+				warmed.set(i, 0);
 			}
 		}
-	}
-
-	private void masterNode(int idx) {
-		int oldMaster = master.getAndSet(idx);
-		if (oldMaster != idx) {
-			slaves.remove(Integer.valueOf(idx));
-			if (logger.isDebugEnabled()) {
-				logger.debug("Neo4j new master node " + idx + " (" + clients[idx].getHost() + ").");
-			}
+		if (t.master() >= 0) {
+			unpark();
 		}
 	}
 
-	private void slaveNode(int idx) {
-		master.compareAndSet(idx, -1);
-		final boolean newSlave = slaves.addIfAbsent(idx);
-		if (logger.isDebugEnabled() && newSlave) {
-			logger.debug("Neo4j new slave node " + idx + " (" + clients[idx].getHost() + ").");
+	/**
+	 * Opens the connections of a node when it is first seen available or when its role changes,
+	 * so that the first requests routed to it do not pay the connection setup.
+	 */
+	private void nodeUp(int idx, boolean roleChanged) {
+		if (warmed.getAndSet(idx, 1) == 0 || roleChanged) {
+			prewarm(idx);
 		}
 	}
 
-	private void unavailableNode(int idx) {
-		master.compareAndSet(idx, -1);
-		slaves.remove(Integer.valueOf(idx));
+	private void prewarm(final int idx) {
+		// The pool opens a new connection for each request which does not find an idle one,
+		// so concurrent requests open as many connections, kept alive afterwards.
+		final int connections = prewarmConnections - inFlight[idx].get();
+		for (int i = 0; i < connections; i++) {
+			HttpClientRequest req = clients[idx].get(warmPaths[idx], new Handler<HttpClientResponse>() {
+				@Override
+				public void handle(HttpClientResponse resp) {
+					resp.bodyHandler(new Handler<Buffer>() {
+						@Override
+						public void handle(Buffer event) {
+						}
+					});
+				}
+			});
+			req.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("Neo4j prewarm error on node " + idx + " (" + clients[idx].getHost() + ") : " +
+								t.getMessage());
+					}
+				}
+			});
+			req.end();
+		}
 	}
 
 	public HttpClient getClient() throws Neo4jConnectionException {
+		final int idx = topology().master();
 		try {
-			return clients[master.get()];
+			if (!breakers[idx].allowRequest()) {
+				throw new Neo4jConnectionException("Circuit breaker open on master node " + idx +
+						" (" + clients[idx].getHost() + ").");
+			}
+			return clients[idx];
 		} catch (RuntimeException e) {
 			throw new Neo4jConnectionException("Can't get master connection.", e);
 		}
 	}
 
+	/**
+	 * Calls the handler with the master client. While no master is elected, the request is parked
+	 * until a health check finds the new master, for at most failover-parking.max-time milliseconds.
+	 */
+	public void whenMaster(final Handler<HttpClient> handler, final Handler<Throwable> failure) {
+		if (monitor != null && parkingMaxTime > 0 && topology().master() < 0) {
+			int waiting = -1;
+			synchronized (parked) {
+				if (topology().master() < 0) {
+					waiting = parked.size();
+					if (waiting < parkingMaxSize) {
+						park(handler, failure);
+						return;
+					}
+				}
+			}
+			if (waiting >= 0) {
+				failure.handle(new Neo4jConnectionException(
+						"No master node and the failover parking queue is full (" + waiting + " requests)."));
+				return;
+			}
+		}
+		final HttpClient client;
+		try {
+			client = getClient();
+		} catch (Neo4jConnectionException e) {
+			failure.handle(e);
+			return;
+		}
+		handler.handle(client);
+	}
+
+	private void park(Handler<HttpClient> handler, Handler<Throwable> failure) {
+		final Parked p = new Parked(handler, failure);
+		p.timerId = vertx.setTimer(parkingMaxTime, new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				synchronized (parked) {
+					if (!parked.remove(p)) {
+						return;
+					}
+				}
+				parkTimeouts.incrementAndGet();
+				p.failure.handle(new Neo4jConnectionException("No master node elected within " +
+						parkingMaxTime + " ms."));
+			}
+		});
+		parked.add(p);
+	}
+
+	private void unpark() {
+		Parked p;
+		while ((p = pollParked()) != null) {
+			vertx.cancelTimer(p.timerId);
+			whenMaster(p.handler, p.failure);
+		}
+	}
+
+	private Parked pollParked() {
+		synchronized (parked) {
+			return parked.poll();
+		}
+	}
+
+	public JsonObject parkingStats() {
+		if (monitor == null) {
+			return null;
+		}
+		synchronized (parked) {
+			return new JsonObject()
+					.putNumber("parked", parked.size())
+					.putNumber("timeouts", parkTimeouts.get());
+		}
+	}
+
 	public HttpClient getSlaveClient() throws Neo4jConnectionException {
-		if (slaves == null || slaves.size() < 1) {
+		final Topology t = topology();
+		if (t.slaveCount() < 1) {
 			return getClient();
 		}
 		try {
-			return clients[slaves.get(rnd.nextInt(slaves.size()))];
+			int idx;
+			switch (slaveSelection) {
+				case LEAST_OUTSTANDING :
+					idx = leastOutstandingSlave(t);
+					break;
+				case EWMA :
+					idx = powerOfTwoChoicesSlave(t);
+					break;
+				default :
+					idx = t.slave(rnd.nextInt(t.slaveCount()));
+			}
+			if (breakers[idx].allowRequest()) {
+				return clients[idx];
+			}
+			HttpClient other = getOtherSlaveClient(clients[idx]);
+			return (other != null) ? other : getClient();
 		} catch (RuntimeException e) {
 			throw new Neo4jConnectionException("Can't get master connection.", e);
 		}
 	}
 
+	/**
+	 * Returns an available slave other than the excluded one, or null if there is none.
+	 */
+	public HttpClient getOtherSlaveClient(HttpClient exclude) {
+		final Topology t = topology();
+		final int size = t.slaveCount();
+		final int offset = (size > 0) ? rnd.nextInt(size) : 0;
+		for (int i = 0; i < size; i++) {
+			int idx = t.slave((offset + i) % size);
+			if (clients[idx] != exclude && breakers[idx].allowRequest()) {
+				return clients[idx];
+			}
+		}
+		return null;
+	}
+
+	private int leastOutstandingSlave(Topology t) {
+		final int size = t.slaveCount();
+		final int offset = rnd.nextInt(size);
+		int selected = t.slave(offset);
+		for (int i = 1; i < size; i++) {
+			int idx = t.slave((offset + i) % size);
+			if (inFlight[idx].get() < inFlight[selected].get()) {
+				selected = idx;
+			}
+		}
+		return selected;
+	}
+
+	private int powerOfTwoChoicesSlave(Topology t) {
+		final int size = t.slaveCount();
+		int first = t.slave(rnd.nextInt(size));
+		if (size == 1) {
+			return first;
+		}
+		int second = t.slave(rnd.nextInt(size));
+		if (second == first) {
+			second = t.slave((t.indexOfSlave(first) + 1) % size);
+		}
+		return (score(first) <= score(second)) ? first : second;
+	}
+
+	private double score(int idx) {
+		return (double) latencies.get(idx) * (inFlight[idx].get() + 1);
+	}
+
+	/**
+	 * @return the index of the priority lane, the default one if the name is null or unknown
+	 */
+	public int lane(String priority) {
+		return lanes.lane(priority);
+	}
+
+	public int laneCount() {
+		return lanes.size();
+	}
+
+	public void requestStarted(HttpClient client, int lane) {
+		int idx = indexOf(client);
+		if (idx >= 0) {
+			schedulers[idx].started(lane);
+		}
+	}
+
+	/**
+	 * Calls the send handler, with the time spent waiting in nanoseconds, once the node has a free slot
+	 * for the lane. At most poolsize x pipelining requests are in flight on a node, the others wait
+	 * in their lane (see PriorityScheduler). With a concurrency limit, the failure handler is called
+	 * at once with a Neo4jOverloadedException if the request would exceed it, and with
+	 * a Neo4jConnectionException if the client is closed before the request is sent.
+	 * The depth of each connection is bounded here rather than with
+	 * HttpClient.setConnectionMaxOutstandingRequestCount, which never gives back to the pool
+	 * a connection once it has been fully occupied.
+	 */
+	public void whenAvailable(HttpClient client, int lane, Handler<Long> send, Handler<Throwable> failure) {
+		int idx = indexOf(client);
+		if (idx < 0) {
+			send.handle(0l);
+		} else if (!schedulers[idx].submit(lane, send, failure)) {
+			breakers[idx].releaseProbe();
+			failure.handle(new Neo4jOverloadedException("Neo4j node " + idx + " (" + clients[idx].getHost() +
+					") is overloaded : more than " + schedulers[idx].limitStats().getInteger("limit") +
+					" requests outstanding."));
+		}
+	}
+
+	/**
+	 * @param waited time spent waiting for a slot, in nanoseconds
+	 * @param latency time from the sending of the request to its response, in nanoseconds
+	 */
+	public void requestEnded(HttpClient client, int lane, long waited, long latency) {
+		int idx = indexOf(client);
+		if (idx < 0) {
+			return;
+		}
+		schedulers[idx].ended(lane, waited + latency);
+		breakers[idx].onSuccess();
+		histograms[idx].record(latency);
+		long current;
+		long next;
+		do {
+			current = latencies.get(idx);
+			next = (current == 0) ? latency : (long) (current + EWMA_WEIGHT * (latency - current));
+		} while (!latencies.compareAndSet(idx, current, next));
+	}
+
+	/**
+	 * Reports a request which has waited for a slot longer than its timeout, and has not been sent.
+	 */
+	public void requestExpired(HttpClient client) {
+		int idx = indexOf(client);
+		if (idx >= 0) {
+			schedulers[idx].expired();
+			breakers[idx].releaseProbe();
+		}
+	}
+
+	/**
+	 * Reports a request which has been given the node but will not be sent (its query timeout
+	 * is exceeded), so that it does not keep the probe of the circuit breaker.
+	 */
+	public void requestCancelled(HttpClient client) {
+		int idx = indexOf(client);
+		if (idx >= 0) {
+			breakers[idx].releaseProbe();
+		}
+	}
+
+	public void requestFailed(HttpClient client, int lane) {
+		int idx = indexOf(client);
+		if (idx < 0) {
+			return;
+		}
+		schedulers[idx].failed(lane);
+		errors[idx].incrementAndGet();
+		if (breakers[idx].onFailure()) {
+			logger.warn("Neo4j circuit breaker open on node " + idx + " (" + clients[idx].getHost() + ").");
+		}
+	}
+
+	public JsonArray stats() {
+		JsonArray nodes = new JsonArray();
+		final Topology t = topology();
+		for (int i = 0; i < clients.length; i++) {
+			final int inFlightRequests = inFlight[i].get();
+			JsonObject node = new JsonObject()
+					.putString("host", clients[i].getHost() + ":" + clients[i].getPort())
+					.putString("role", t.role(i))
+					.putNumber("inFlight", inFlightRequests)
+					.putNumber("poolSize", poolSize)
+					.putNumber("poolSaturation", (double) inFlightRequests / poolSize)
+					.putNumber("pipelining", pipelining)
+					.putNumber("poolOccupancy", (double) inFlightRequests / capacity)
+					.putNumber("poolWaiting", schedulers[i].waiting())
+					.putObject("poolWait", schedulers[i].waitSnapshot())
+					.putNumber("errors", errors[i].get())
+					.putBoolean("circuitOpen", breakers[i].isOpen())
+					.putNumber("ewma", latencies.get(i) / 1000000d)
+					.putObject("latency", histograms[i].snapshot());
+			if (lanes.size() > 1) {
+				node.putObject("lanes", schedulers[i].laneStats());
+			}
+			JsonObject limit = schedulers[i].limitStats();
+			if (limit != null) {
+				node.putObject("concurrencyLimit", limit);
+			}
+			nodes.addObject(node);
+		}
+		return nodes;
+	}
+
+	private int indexOf(HttpClient client) {
+		for (int i = 0; i < clients.length; i++) {
+			if (clients[i] == client) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static final class Parked {
+
+		private final Handler<HttpClient> handler;
+		private final Handler<Throwable> failure;
+		private long timerId;
+
+		private Parked(Handler<HttpClient> handler, Handler<Throwable> failure) {
+			this.handler = handler;
+			this.failure = failure;
+		}
+
+	}
+
 	public void close() {
-		if (checkTimerId > 0) {
-			vertx.cancelTimer(checkTimerId);
+		if (monitor != null) {
+			vertx.eventBus().unregisterHandler(monitor.address(), topologyHandler);
+			monitor.release();
+		}
+		Parked p;
+		while ((p = pollParked()) != null) {
+			vertx.cancelTimer(p.timerId);
+			p.failure.handle(new Neo4jConnectionException("Neo4j client closed."));
+		}
+		// the requests waiting for a slot would never be sent : their senders get an error instead
+		if (schedulers != null) {
+			for (PriorityScheduler scheduler : schedulers) {
+				scheduler.close(new Neo4jConnectionException("Neo4j client closed."));
+			}
 		}
 		if (clients != null && clients.length > 0) {
 			for (HttpClient client : clients) {
@@ -0,0 +1,312 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonElement;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Follows the shape of Neo4j REST responses (/cypher, /batch and /transaction)
+ * and reports columns and rows one by one. Only the current row is materialized, unless the rows
+ * of a result come before its columns : they are then kept, and reported once the columns are.
+ * A result whose rows have no columns fails with a DecodeException.
+ */
+public class Neo4jResultParser implements JsonStreamParser.Listener {
+
+	public interface ResultHandler {
+
+		void columns(int result, JsonArray columns);
+
+		void row(int result, JsonArray row);
+
+		void field(String name, Object value);
+
+	}
+
+	private static final int ROOT = 0;
+	private static final int RESULT = 1;
+	private static final int RESULTS = 2;
+	private static final int BATCH = 3;
+	private static final int BATCH_ITEM = 4;
+	private static final int DATA = 5;
+
+	private static final int CAPTURE_DISCARD = 0;
+	private static final int CAPTURE_COLUMNS = 1;
+	private static final int CAPTURE_ROW = 2;
+	private static final int CAPTURE_FIELD = 3;
+
+	private final ResultHandler handler;
+	private int[] frames = new int[8];
+	private int[] frameResults = new int[8];
+	private int depth;
+	private int nextResult;
+	private String field;
+	private ValueBuilder capture;
+	private int captureKind;
+	private int captureResult;
+	private String captureField;
+	private int columnsResult = -1;
+	private List<JsonArray> early;
+
+	public Neo4jResultParser(ResultHandler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void startObject() {
+		if (capture != null) {
+			capture.startObject();
+			return;
+		}
+		switch (top()) {
+			case -1 :
+				push(ROOT, 0);
+				break;
+			case BATCH :
+				push(BATCH_ITEM, nextResult++);
+				break;
+			case RESULTS :
+				push(RESULT, nextResult++);
+				break;
+			case BATCH_ITEM :
+				if ("body".equals(field)) {
+					push(RESULT, frameResults[depth - 1]);
+				} else {
+					startCapture(CAPTURE_DISCARD).startObject();
+				}
+				break;
+			case DATA :
+				startCapture(CAPTURE_ROW).startObject();
+				break;
+			default :
+				startCapture(fieldCapture()).startObject();
+		}
+	}
+
+	@Override
+	public void startArray() {
+		if (capture != null) {
+			capture.startArray();
+			return;
+		}
+		switch (top()) {
+			case -1 :
+				push(BATCH, 0);
+				break;
+			case ROOT :
+			case RESULT :
+				if ("data".equals(field)) {
+					push(DATA, frameResults[depth - 1]);
+				} else if ("results".equals(field) && top() == ROOT) {
+					push(RESULTS, 0);
+				} else {
+					startCapture(fieldCapture()).startArray();
+				}
+				break;
+			case DATA :
+				startCapture(CAPTURE_ROW).startArray();
+				break;
+			default :
+				startCapture(CAPTURE_DISCARD).startArray();
+		}
+	}
+
+	@Override
+	public void endObject() {
+		end();
+	}
+
+	@Override
+	public void endArray() {
+		end();
+	}
+
+	@Override
+	public void fieldName(String name) {
+		if (capture != null) {
+			capture.fieldName(name);
+		} else {
+			field = name;
+		}
+	}
+
+	@Override
+	public void value(Object value) {
+		if (capture != null) {
+			capture.value(value);
+		} else if (top() == ROOT) {
+			handler.field(field, value);
+		}
+	}
+
+	private void end() {
+		if (capture != null) {
+			capture.end();
+			if (capture.isComplete()) {
+				deliver(capture.result());
+			}
+		} else {
+			int frame = frames[--depth];
+			if ((frame == RESULT || frame == ROOT) && early != null) {
+				throw new DecodeException("Rows of result " + frameResults[depth] + " received without columns.");
+			}
+		}
+	}
+
+	private int top() {
+		return (depth == 0) ? -1 : frames[depth - 1];
+	}
+
+	private void push(int frame, int result) {
+		if (depth == frames.length) {
+			frames = Arrays.copyOf(frames, depth * 2);
+			frameResults = Arrays.copyOf(frameResults, depth * 2);
+		}
+		frames[depth] = frame;
+		frameResults[depth++] = result;
+	}
+
+	private int fieldCapture() {
+		if ("columns".equals(field)) {
+			return CAPTURE_COLUMNS;
+		}
+		return (top() == ROOT) ? CAPTURE_FIELD : CAPTURE_DISCARD;
+	}
+
+	private ValueBuilder startCapture(int kind) {
+		captureKind = kind;
+		captureResult = frameResults[depth - 1];
+		captureField = field;
+		capture = new ValueBuilder();
+		return capture;
+	}
+
+	private void deliver(JsonElement value) {
+		capture = null;
+		switch (captureKind) {
+			case CAPTURE_COLUMNS :
+				if (value.isArray()) {
+					handler.columns(captureResult, value.asArray());
+					columnsResult = captureResult;
+					if (early != null) {
+						List<JsonArray> rows = early;
+						early = null;
+						for (JsonArray row : rows) {
+							handler.row(captureResult, row);
+						}
+					}
+				}
+				break;
+			case CAPTURE_ROW :
+				JsonArray row;
+				if (value.isArray()) {
+					row = value.asArray();
+				} else {
+					row = value.asObject().getArray("row");
+					if (row == null) {
+						row = value.asObject().getArray("rest");
+					}
+				}
+				if (row == null) {
+					break;
+				}
+				if (captureResult == columnsResult) {
+					handler.row(captureResult, row);
+				} else {
+					if (early == null) {
+						early = new ArrayList<>();
+					}
+					early.add(row);
+				}
+				break;
+			case CAPTURE_FIELD :
+				handler.field(captureField, value);
+				break;
+		}
+	}
+
+	static final class ValueBuilder implements JsonStreamParser.Listener {
+
+		private final Deque<JsonElement> stack = new ArrayDeque<>();
+		private final Deque<String> keys = new ArrayDeque<>();
+		private JsonElement result;
+
+		@Override
+		public void startObject() {
+			stack.push(new JsonObject());
+		}
+
+		@Override
+		public void startArray() {
+			stack.push(new JsonArray());
+		}
+
+		@Override
+		public void endObject() {
+			end();
+		}
+
+		@Override
+		public void endArray() {
+			end();
+		}
+
+		@Override
+		public void fieldName(String name) {
+			keys.push(name);
+		}
+
+		@Override
+		public void value(Object value) {
+			JsonElement parent = stack.peek();
+			if (parent.isArray()) {
+				parent.asArray().add(value);
+			} else {
+				parent.asObject().putValue(keys.pop(), value);
+			}
+		}
+
+		private void end() {
+			JsonElement e = stack.pop();
+			if (stack.isEmpty()) {
+				result = e;
+			} else {
+				value(e);
+			}
+		}
+
+		boolean isComplete() {
+			return result != null;
+		}
+
+		JsonElement result() {
+			return result;
+		}
+
+	}
+
+}
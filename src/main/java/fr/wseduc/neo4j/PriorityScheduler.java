@@ -0,0 +1,259 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Admission of the requests to one node. At most capacity requests are in flight, and each
+ * priority lane at most its share of them. Waiting requests are queued by lane, in arrival order,
+ * and the lanes are served by weighted fair queuing (stride scheduling) : while both wait,
+ * a lane of weight 4 gets four free slots for each one given to a lane of weight 1.
+ * With a concurrency limit, the requests which would exceed it are rejected instead of queued.
+ */
+public class PriorityScheduler {
+
+	/**
+	 * Configuration of the lanes, shared by the schedulers of all the nodes. The first lane is the default one.
+	 */
+	public static final class Lanes {
+
+		private final String[] names;
+		private final double[] strides;
+		private final double[] shares;
+
+		public Lanes(JsonArray config) {
+			final int size = (config != null && config.size() > 0) ? config.size() : 1;
+			names = new String[size];
+			strides = new double[size];
+			shares = new double[size];
+			for (int i = 0; i < size; i++) {
+				JsonObject lane = (config != null && config.size() > 0) ?
+						config.<JsonObject>get(i) : new JsonObject();
+				names[i] = lane.getString("name", "default");
+				strides[i] = 1d / Math.max(lane.getNumber("weight", 1).doubleValue(), 0.001);
+				shares[i] = Math.min(Math.max(lane.getNumber("max-share", 1).doubleValue(), 0d), 1d);
+			}
+		}
+
+		/**
+		 * @return the index of the lane, the default one if the name is null or unknown
+		 */
+		public int lane(String name) {
+			for (int i = 0; name != null && i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return i;
+				}
+			}
+			return 0;
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+	}
+
+	private final Lanes lanes;
+	private final int capacity;
+	private final AtomicInteger inFlight;
+	private final AtomicInteger[] laneInFlight;
+	private final int[] laneCapacity;
+	private final List<ArrayDeque<Pending>> queues;
+	private int waiting;
+	private Throwable closed;
+	private final ConcurrencyLimit limit;
+	private final double[] pass;
+	private double virtualTime;
+	private final LatencyHistogram waits = new LatencyHistogram();
+	private final LatencyHistogram[] laneWaits;
+
+	/**
+	 * @param inFlight requests in flight on the node, incremented by started and decremented by ended
+	 * @param limit adaptive limit of the requests outstanding on the node, or null
+	 */
+	public PriorityScheduler(Lanes lanes, int capacity, AtomicInteger inFlight, ConcurrencyLimit limit) {
+		this.lanes = lanes;
+		this.capacity = capacity;
+		this.inFlight = inFlight;
+		this.limit = limit;
+		final int size = lanes.size();
+		laneInFlight = new AtomicInteger[size];
+		laneCapacity = new int[size];
+		queues = new ArrayList<>(size);
+		pass = new double[size];
+		laneWaits = new LatencyHistogram[size];
+		for (int i = 0; i < size; i++) {
+			laneInFlight[i] = new AtomicInteger();
+			laneCapacity[i] = Math.max((int) Math.ceil(lanes.shares[i] * capacity), 1);
+			queues.add(new ArrayDeque<Pending>());
+			laneWaits[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Calls the send handler, with the time spent waiting in nanoseconds, once the lane may use a slot,
+	 * or the failure handler if the scheduler is closed before.
+	 * @return false, without calling the handlers, if the request would exceed the concurrency limit
+	 */
+	public synchronized boolean submit(int lane, Handler<Long> send, Handler<Throwable> failure) {
+		if (closed != null) {
+			failure.handle(closed);
+			return true;
+		}
+		if (limit != null && limit.rejects(inFlight.get() + waiting)) {
+			return false;
+		}
+		if (queues.get(lane).isEmpty() && canStart(lane)) {
+			dispatch(lane, send, 0l);
+		} else {
+			if (queues.get(lane).isEmpty()) {
+				// a lane which was idle does not get credit for the time it has not used
+				pass[lane] = Math.max(pass[lane], virtualTime);
+			}
+			queues.get(lane).add(new Pending(send, failure));
+			waiting++;
+			drain();
+		}
+		return true;
+	}
+
+	public synchronized void started(int lane) {
+		inFlight.incrementAndGet();
+		laneInFlight[lane].incrementAndGet();
+	}
+
+	/**
+	 * @param rtt time from the submission of the request to its response, in nanoseconds
+	 */
+	public synchronized void ended(int lane, long rtt) {
+		if (limit != null) {
+			limit.onSample(rtt, inFlight.get() + waiting);
+		}
+		release(lane);
+	}
+
+	public synchronized void failed(int lane) {
+		if (limit != null) {
+			limit.onDrop();
+		}
+		release(lane);
+	}
+
+	public synchronized void expired() {
+		if (limit != null) {
+			limit.onDrop();
+		}
+	}
+
+	private void release(int lane) {
+		inFlight.decrementAndGet();
+		laneInFlight[lane].decrementAndGet();
+		drain();
+	}
+
+	private boolean canStart(int lane) {
+		return inFlight.get() < capacity && laneInFlight[lane].get() < laneCapacity[lane];
+	}
+
+	private void drain() {
+		while (inFlight.get() < capacity) {
+			int next = -1;
+			for (int i = 0; i < queues.size(); i++) {
+				if (!queues.get(i).isEmpty() && laneInFlight[i].get() < laneCapacity[i] &&
+						(next < 0 || pass[i] < pass[next])) {
+					next = i;
+				}
+			}
+			if (next < 0) {
+				return;
+			}
+			Pending p = queues.get(next).poll();
+			waiting--;
+			dispatch(next, p.send, System.nanoTime() - p.queued);
+		}
+	}
+
+	private void dispatch(int lane, Handler<Long> send, long waited) {
+		virtualTime = pass[lane];
+		pass[lane] += lanes.strides[lane];
+		waits.record(waited);
+		laneWaits[lane].record(waited);
+		send.handle(waited);
+	}
+
+	/**
+	 * Fails the waiting requests, and the ones submitted later, with the cause. They were never sent.
+	 */
+	public synchronized void close(Throwable cause) {
+		closed = cause;
+		for (ArrayDeque<Pending> queue : queues) {
+			Pending p;
+			while ((p = queue.poll()) != null) {
+				waiting--;
+				p.failure.handle(cause);
+			}
+		}
+	}
+
+	public synchronized int waiting() {
+		return waiting;
+	}
+
+	public synchronized JsonObject limitStats() {
+		return (limit != null) ? limit.stats() : null;
+	}
+
+	public JsonObject waitSnapshot() {
+		return waits.snapshot();
+	}
+
+	public synchronized JsonObject laneStats() {
+		JsonObject stats = new JsonObject();
+		for (int i = 0; i < queues.size(); i++) {
+			stats.putObject(lanes.names[i], new JsonObject()
+					.putNumber("inFlight", laneInFlight[i].get())
+					.putNumber("maxInFlight", laneCapacity[i])
+					.putNumber("waiting", queues.get(i).size())
+					.putObject("poolWait", laneWaits[i].snapshot()));
+		}
+		return stats;
+	}
+
+	private static final class Pending {
+
+		private final Handler<Long> send;
+		private final Handler<Throwable> failure;
+		private final long queued = System.nanoTime();
+
+		private Pending(Handler<Long> send, Handler<Throwable> failure) {
+			this.send = send;
+			this.failure = failure;
+		}
+
+	}
+
+}
@@ -0,0 +1,440 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * LRU cache of read results bounded by an estimated size in bytes.
+ * Entries are tagged with the labels and relationship types of their query
+ * and a write removes the entries sharing one of its tags, found through an index by tag.
+ * Each tag keeps the generation of its last write, so a read in flight during a write
+ * is only kept out of the cache when the write shares one of its tags.
+ * The cache of a persistor address is shared by its instances of the JVM, so that a write
+ * handled by any of them invalidates the results cached by the others.
+ */
+public class ResultCache {
+
+	private static final Pattern labelPattern = Pattern.compile(":\\s*`?([A-Za-z_][A-Za-z0-9_]*)");
+	private static final Set<String> clauses = new HashSet<>(Arrays.asList("match", "optional", "where", "with",
+			"return", "create", "merge", "set", "remove", "delete", "detach", "foreach", "unwind", "on", "union",
+			"order", "skip", "limit", "call", "load", "using", "start"));
+	private static final Map<String, ResultCache> caches = new HashMap<>();
+	private static final int MAX_WRITTEN_TAGS = 10000;
+
+	private final long maxBytes;
+	private final long defaultTtl;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private final Map<String, Set<String>> keysByTag = new HashMap<>();
+	private final Set<String> untagged = new HashSet<>();
+	// generation of the last write of each tag, of the last write and of the last write without tags
+	private final Map<String, Long> written = new HashMap<>();
+	private long generation;
+	private long lastWrite;
+	private long lastWriteAll;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	private static final class Entry {
+		private final JsonArray result;
+		private final long expires;
+		private final long size;
+		private final Set<String> tags;
+
+		private Entry(JsonArray result, long expires, long size, Set<String> tags) {
+			this.result = result;
+			this.expires = expires;
+			this.size = size;
+			this.tags = tags;
+		}
+	}
+
+	private String address;
+	private int references;
+
+	public ResultCache(JsonObject config) {
+		this.maxBytes = config.getLong("max-size", 64 * 1024 * 1024l);
+		this.defaultTtl = config.getLong("default-ttl", 1000l);
+	}
+
+	/**
+	 * Returns the cache of the persistor address, created with the configuration of the first
+	 * instance which needs it. Each acquire must be followed by a release.
+	 */
+	public static ResultCache acquire(String address, JsonObject config) {
+		synchronized (caches) {
+			ResultCache cache = caches.get(address);
+			if (cache == null) {
+				cache = new ResultCache(config);
+				cache.address = address;
+				caches.put(address, cache);
+			}
+			cache.references++;
+			return cache;
+		}
+	}
+
+	public void release() {
+		synchronized (caches) {
+			if (--references <= 0) {
+				caches.remove(address);
+			}
+		}
+	}
+
+	public synchronized JsonArray get(String key) {
+		Entry e = entries.get(key);
+		if (e != null && e.expires < System.currentTimeMillis()) {
+			remove(key);
+			e = null;
+		}
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.result;
+	}
+
+	/**
+	 * @return the current generation, to give to put when the result of a read started now is ready
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Caches the result unless a write sharing one of its tags has started since the given generation.
+	 */
+	public synchronized void put(String key, JsonArray result, long ttl, Set<String> tags, long generation) {
+		if (writtenSince(tags, generation)) {
+			return;
+		}
+		long size = 2l * (key.length() + result.encode().length());
+		if (size > maxBytes) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(result, System.currentTimeMillis() + ((ttl > 0) ? ttl : defaultTtl), size, tags));
+		bytes += size;
+		if (tags.isEmpty()) {
+			untagged.add(key);
+		}
+		for (String tag : tags) {
+			Set<String> keys = keysByTag.get(tag);
+			if (keys == null) {
+				keys = new HashSet<>();
+				keysByTag.put(tag, keys);
+			}
+			keys.add(key);
+		}
+		while (bytes > maxBytes && !entries.isEmpty()) {
+			remove(entries.keySet().iterator().next());
+			evictions++;
+		}
+	}
+
+	private boolean writtenSince(Set<String> tags, long generation) {
+		if (lastWriteAll > generation || (tags.isEmpty() && lastWrite > generation)) {
+			return true;
+		}
+		for (String tag : tags) {
+			Long g = written.get(tag);
+			if (g != null && g > generation) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called when a write is sent : the reads in flight sharing one of its tags
+	 * won't be cached, the entries are kept until the write completes.
+	 */
+	public synchronized void writeStarted(Set<String> tags) {
+		written(tags);
+	}
+
+	/**
+	 * Removes entries tagged with one of the given tags, or every entry when
+	 * tags are unknown. Entries without tags are removed by any write.
+	 */
+	public synchronized void invalidate(Set<String> tags) {
+		written(tags);
+		if (tags.isEmpty()) {
+			invalidations += entries.size();
+			entries.clear();
+			keysByTag.clear();
+			untagged.clear();
+			bytes = 0;
+			return;
+		}
+		for (String key : new ArrayList<>(untagged)) {
+			remove(key);
+			invalidations++;
+		}
+		for (String tag : tags) {
+			Set<String> keys = keysByTag.get(tag);
+			if (keys == null) {
+				continue;
+			}
+			for (String key : new ArrayList<>(keys)) {
+				remove(key);
+				invalidations++;
+			}
+		}
+	}
+
+	private void written(Set<String> tags) {
+		generation++;
+		lastWrite = generation;
+		if (tags.isEmpty() || written.size() + tags.size() > MAX_WRITTEN_TAGS) {
+			// the generations by tag are forgotten by invalidating all the reads in flight
+			written.clear();
+			lastWriteAll = generation;
+			return;
+		}
+		for (String tag : tags) {
+			written.put(tag, generation);
+		}
+	}
+
+	private void remove(String key) {
+		Entry e = entries.remove(key);
+		if (e == null) {
+			return;
+		}
+		bytes -= e.size;
+		if (e.tags.isEmpty()) {
+			untagged.remove(key);
+		}
+		for (String tag : e.tags) {
+			Set<String> keys = keysByTag.get(tag);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByTag.remove(tag);
+				}
+			}
+		}
+	}
+
+	public synchronized JsonObject stats() {
+		return new JsonObject()
+				.putNumber("entries", entries.size())
+				.putNumber("bytes", bytes)
+				.putNumber("maxBytes", maxBytes)
+				.putNumber("hits", hits)
+				.putNumber("misses", misses)
+				.putNumber("evictions", evictions)
+				.putNumber("invalidations", invalidations);
+	}
+
+	public static Set<String> tags(String query, JsonArray explicit) {
+		Set<String> tags = new HashSet<>();
+		if (explicit != null) {
+			for (Object o : explicit) {
+				if (o instanceof String) {
+					tags.add((String) o);
+				}
+			}
+			return tags;
+		}
+		if (query != null) {
+			Matcher m = labelPattern.matcher(query);
+			while (m.find()) {
+				tags.add(m.group(1));
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * Tags of the entries invalidated by a write : the given ones, or those of the query.
+	 * A query which sets, removes or deletes a variable bound without a label or a relationship
+	 * type can write anything, so it gets no tags and invalidates every entry.
+	 */
+	public static Set<String> invalidated(String query, JsonArray explicit) {
+		if (explicit == null && query != null && modifiesUnlabeled(query)) {
+			return new HashSet<>();
+		}
+		return tags(query, explicit);
+	}
+
+	/**
+	 * @return true if an item of a SET, REMOVE or DELETE clause does not start with
+	 * a variable bound with a label or a relationship type in a pattern of the query
+	 */
+	static boolean modifiesUnlabeled(String query) {
+		final List<String> tokens = tokens(query);
+		final Set<String> labeled = new HashSet<>();
+		for (int i = 0; i + 2 < tokens.size(); i++) {
+			String t = tokens.get(i);
+			if ((t.equals("(") || t.equals("[")) && isName(tokens.get(i + 1)) && tokens.get(i + 2).equals(":")) {
+				labeled.add(tokens.get(i + 1));
+			}
+		}
+		int depth = 0;
+		// depth of the items of the current SET, REMOVE or DELETE clause, -1 outside of them
+		int itemsDepth = -1;
+		boolean itemStart = false;
+		String previous = "";
+		for (String t : tokens) {
+			final String keyword = (isName(t) && !previous.equals(".")) ? t.toLowerCase() : "";
+			if (t.equals("(") || t.equals("[") || t.equals("{")) {
+				if (itemStart && depth == itemsDepth) {
+					return true;
+				}
+				depth++;
+				itemStart = false;
+			} else if (t.equals(")") || t.equals("]") || t.equals("}")) {
+				depth--;
+				if (depth < itemsDepth) {
+					itemsDepth = -1;
+				}
+				itemStart = false;
+			} else if (keyword.equals("set") || keyword.equals("remove") || keyword.equals("delete")) {
+				itemsDepth = depth;
+				itemStart = true;
+			} else if (clauses.contains(keyword)) {
+				if (depth == itemsDepth) {
+					itemsDepth = -1;
+				}
+				itemStart = false;
+			} else if (depth == itemsDepth && t.equals(",")) {
+				itemStart = true;
+			} else if (itemStart && depth == itemsDepth) {
+				if (!isName(t) || !labeled.contains(t)) {
+					return true;
+				}
+				itemStart = false;
+			} else {
+				itemStart = false;
+			}
+			previous = t;
+		}
+		return false;
+	}
+
+	/**
+	 * Names (escaped names without their backticks) and punctuation of the query.
+	 * String literals become ' and numbers 0, comments are skipped.
+	 */
+	private static List<String> tokens(String query) {
+		final List<String> tokens = new ArrayList<>();
+		final int length = query.length();
+		int i = 0;
+		while (i < length) {
+			char c = query.charAt(i);
+			if (c == '\'' || c == '"') {
+				i = CypherClassifier.skipQuoted(query, i, c);
+				tokens.add("'");
+			} else if (c == '`') {
+				int end = CypherClassifier.skipQuoted(query, i, c);
+				tokens.add(query.substring(i + 1, Math.max(end - 1, i + 1)));
+				i = end;
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '/') {
+				i = query.indexOf('\n', i);
+				if (i < 0) {
+					i = length;
+				}
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*') {
+				i = query.indexOf("*/", i + 2);
+				i = (i < 0) ? length : i + 2;
+			} else if (Character.isLetter(c) || c == '_') {
+				int start = i++;
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_')) {
+					i++;
+				}
+				tokens.add(query.substring(start, i));
+			} else if (Character.isDigit(c)) {
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '.')) {
+					i++;
+				}
+				tokens.add("0");
+			} else {
+				if (!Character.isWhitespace(c)) {
+					tokens.add(String.valueOf(c));
+				}
+				i++;
+			}
+		}
+		return tokens;
+	}
+
+	private static boolean isName(String token) {
+		return !token.isEmpty() && (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_' ||
+				token.length() > 1);
+	}
+
+	public static String key(String query, JsonObject params) {
+		StringBuilder sb = new StringBuilder(query);
+		if (params != null && params.size() > 0) {
+			sb.append('\u0000');
+			canonical(sb, params);
+		}
+		return sb.toString();
+	}
+
+	private static void canonical(StringBuilder sb, Object value) {
+		if (value instanceof JsonObject) {
+			JsonObject o = (JsonObject) value;
+			sb.append('{');
+			for (String field : new TreeSet<>(o.getFieldNames())) {
+				quote(sb, field);
+				sb.append(':');
+				canonical(sb, o.getValue(field));
+				sb.append(',');
+			}
+			sb.append('}');
+		} else if (value instanceof JsonArray) {
+			sb.append('[');
+			for (Object v : (JsonArray) value) {
+				canonical(sb, v);
+				sb.append(',');
+			}
+			sb.append(']');
+		} else if (value instanceof String) {
+			quote(sb, (String) value);
+		} else {
+			sb.append(value);
+		}
+	}
+
+	private static void quote(StringBuilder sb, String value) {
+		sb.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+	}
+
+}
@@ -0,0 +1,129 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+class ResultCollector implements Neo4jResultParser.ResultHandler {
+
+	private final boolean columnar;
+	private final List<JsonArray> columns = new ArrayList<>();
+	private final List<JsonArray> results = new ArrayList<>();
+	private final JsonObject fields = new JsonObject();
+	private boolean failed;
+
+	ResultCollector() {
+		this(false);
+	}
+
+	/**
+	 * @param columnar keep rows as the arrays of the response instead of objects keyed by column
+	 */
+	ResultCollector(boolean columnar) {
+		this.columnar = columnar;
+	}
+
+	@Override
+	public void columns(int result, JsonArray c) {
+		ensure(result);
+		columns.set(result, c);
+	}
+
+	@Override
+	public void row(int result, JsonArray row) {
+		ensure(result);
+		JsonArray c = columns.get(result);
+		if (columnar) {
+			results.get(result).addArray(row);
+		} else if (c != null) {
+			results.get(result).addObject(transformRow(c, row));
+		}
+	}
+
+	@Override
+	public void field(String name, Object value) {
+		fields.putValue(name, value);
+	}
+
+	private void ensure(int result) {
+		while (results.size() <= result) {
+			columns.add(null);
+			results.add(new JsonArray());
+		}
+	}
+
+	public JsonArray result(int result) {
+		return (result < results.size()) ? results.get(result) : new JsonArray();
+	}
+
+	public JsonObject columnar(int result) {
+		JsonArray c = (result < columns.size()) ? columns.get(result) : null;
+		return new JsonObject()
+				.putArray("columns", (c != null) ? c : new JsonArray())
+				.putArray("rows", result(result));
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public JsonObject fields() {
+		return fields;
+	}
+
+	public boolean fail() {
+		if (failed) {
+			return false;
+		}
+		failed = true;
+		return true;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	static JsonObject transformRow(JsonArray columns, JsonArray row) {
+		JsonObject outRow = new JsonObject();
+		for (int j = 0; j < row.size(); j++) {
+			Object value = row.get(j);
+			if (value == null) {
+				outRow.putValue((String) columns.get(j), null);
+			} else if (value instanceof String) {
+				outRow.putString((String) columns.get(j), (String) value);
+			} else if (value instanceof JsonArray) {
+				outRow.putArray((String) columns.get(j), (JsonArray) value);
+			} else if (value instanceof JsonObject) {
+				outRow.putObject((String) columns.get(j), (JsonObject) value);
+			} else if (value instanceof Boolean) {
+				outRow.putBoolean((String) columns.get(j), (Boolean) value);
+			} else if (value instanceof Number) {
+				outRow.putNumber((String) columns.get(j), (Number) value);
+			} else {
+				outRow.putString((String) columns.get(j), value.toString());
+			}
+		}
+		return outRow;
+	}
+
+}
@@ -0,0 +1,111 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+
+public class ResultCursors {
+
+	private final Vertx vertx;
+	private final long timeout;
+	private final long timerId;
+	private final Map<String, Entry> cursors = new ConcurrentHashMap<>();
+
+	private static final class Entry {
+		private final ResultCursor cursor;
+		private volatile long lastAccess;
+		private volatile boolean locked;
+
+		private Entry(ResultCursor cursor) {
+			this.cursor = cursor;
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	public ResultCursors(Vertx vertx, long timeout) {
+		this.vertx = vertx;
+		this.timeout = timeout;
+		this.timerId = vertx.setPeriodic(Math.max(timeout / 2, 1000l), new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				expire();
+			}
+		});
+	}
+
+	public String register(ResultCursor cursor) {
+		String id = UUID.randomUUID().toString();
+		cursors.put(id, new Entry(cursor));
+		return id;
+	}
+
+	public ResultCursor lock(String id) {
+		Entry e = cursors.get(id);
+		if (e == null || e.locked) {
+			return null;
+		}
+		e.locked = true;
+		e.lastAccess = System.currentTimeMillis();
+		return e.cursor;
+	}
+
+	public void unlock(String id) {
+		Entry e = cursors.get(id);
+		if (e != null) {
+			e.lastAccess = System.currentTimeMillis();
+			e.locked = false;
+		}
+	}
+
+	public ResultCursor remove(String id) {
+		Entry e = cursors.remove(id);
+		return (e != null) ? e.cursor : null;
+	}
+
+	public int size() {
+		return cursors.size();
+	}
+
+	private void expire() {
+		final long limit = System.currentTimeMillis() - timeout;
+		Iterator<Entry> it = cursors.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (!e.locked && e.lastAccess < limit) {
+				it.remove();
+				e.cursor.close();
+			}
+		}
+	}
+
+	public void close() {
+		vertx.cancelTimer(timerId);
+		for (Entry e : cursors.values()) {
+			e.cursor.close();
+		}
+		cursors.clear();
+	}
+
+}
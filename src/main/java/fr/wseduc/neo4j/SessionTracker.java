@@ -0,0 +1,121 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Read-your-writes routing. A session which has a write in flight, or whose last write
+ * is more recent than the window, reads from the master : slaves may not have it yet.
+ * Sessions are shared by every persistor instance of the JVM, as the messages of a session
+ * are spread over the instances.
+ */
+public class SessionTracker {
+
+	private static final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+	private final long window;
+	private final int maxSessions;
+	private final AtomicLong masterReads = new AtomicLong();
+	private final AtomicLong slaveReads = new AtomicLong();
+
+	public SessionTracker(JsonObject config) {
+		this.window = config.getLong("window", 5000l);
+		this.maxSessions = config.getInteger("max-sessions", 100000);
+	}
+
+	public void writeStarted(String session) {
+		Session s = sessions.get(session);
+		if (s == null) {
+			if (sessions.size() >= maxSessions) {
+				purge();
+			}
+			s = new Session();
+			Session existing = sessions.putIfAbsent(session, s);
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		synchronized (s) {
+			s.writing++;
+			s.lastWrite = System.currentTimeMillis();
+		}
+		// a purge may have removed it between the lookup and the update
+		sessions.putIfAbsent(session, s);
+	}
+
+	public void writeEnded(String session) {
+		Session s = sessions.get(session);
+		if (s != null) {
+			synchronized (s) {
+				s.writing--;
+				s.lastWrite = System.currentTimeMillis();
+			}
+		}
+	}
+
+	public boolean readFromMaster(String session) {
+		Session s = sessions.get(session);
+		final boolean master;
+		if (s == null) {
+			master = false;
+		} else {
+			synchronized (s) {
+				master = s.isActive(window);
+			}
+		}
+		(master ? masterReads : slaveReads).incrementAndGet();
+		return master;
+	}
+
+	private void purge() {
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session s = it.next();
+			synchronized (s) {
+				if (!s.isActive(window)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public JsonObject stats() {
+		return new JsonObject()
+				.putNumber("sessions", sessions.size())
+				.putNumber("masterReads", masterReads.get())
+				.putNumber("slaveReads", slaveReads.get());
+	}
+
+	private static final class Session {
+
+		private int writing;
+		private long lastWrite;
+
+		private boolean isActive(long window) {
+			return writing > 0 || System.currentTimeMillis() - lastWrite < window;
+		}
+
+	}
+
+}
@@ -0,0 +1,312 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+/**
+ * Statistics by query fingerprint (the query without its literals, comments and extra spaces)
+ * and log of the slow queries. A fingerprint is logged at most once per interval, with the number
+ * of slow executions since its last log, and never with the parameters.
+ * The statistics are shared by every persistor instance of the JVM, so that any of them can report them.
+ */
+public class SlowQueryLog {
+
+	private static final int MAX_CACHED_QUERIES = 10000;
+	private static final int MAX_FINGERPRINT_LENGTH = 2000;
+	private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<>();
+
+	private final Logger logger;
+	private final long threshold;
+	private final long logInterval;
+	private final int maxFingerprints;
+
+	public SlowQueryLog(JsonObject config, Logger logger) {
+		this.logger = logger;
+		this.threshold = config.getLong("threshold", 1000l) * 1000000;
+		this.logInterval = config.getLong("log-interval", 60000l);
+		this.maxFingerprints = config.getInteger("max-fingerprints", 1000);
+	}
+
+	/**
+	 * Records the execution of the query, or of the queries or statements, of a message.
+	 * @param latency in nanoseconds
+	 * @param bytes size of the reply, 0 if unknown
+	 */
+	public void record(JsonObject body, long latency, long rows, long bytes, boolean failed) {
+		String query = query(body);
+		if (query == null) {
+			return;
+		}
+		Entry e = entries.get(query);
+		if (e == null) {
+			if (entries.size() >= maxFingerprints) {
+				evict();
+			}
+			e = new Entry();
+			Entry existing = entries.putIfAbsent(query, e);
+			if (existing != null) {
+				e = existing;
+			}
+		}
+		e.count.incrementAndGet();
+		e.totalTime.addAndGet(latency);
+		long current;
+		while (latency > (current = e.maxTime.get()) && !e.maxTime.compareAndSet(current, latency));
+		e.rows.addAndGet(rows);
+		e.bytes.addAndGet(bytes);
+		if (failed) {
+			e.errors.incrementAndGet();
+		}
+		if (latency >= threshold) {
+			final long slow = e.slow.incrementAndGet();
+			final long now = System.currentTimeMillis();
+			final long logged = e.lastLog.get();
+			if (now - logged >= logInterval && e.lastLog.compareAndSet(logged, now)) {
+				final long unlogged = slow - e.loggedSlow.getAndSet(slow);
+				logger.warn("Slow query : " + (latency / 1000000) + " ms, " + rows + " rows" +
+						((unlogged > 1) ? " (" + unlogged + " slow executions since last log)" : "") + " : " + query);
+			}
+		}
+	}
+
+	/**
+	 * Removes the fingerprint with the lowest total time, to make room for a new one.
+	 */
+	private static void evict() {
+		String lowest = null;
+		long lowestTime = Long.MAX_VALUE;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			final long time = e.getValue().totalTime.get();
+			if (time < lowestTime) {
+				lowest = e.getKey();
+				lowestTime = time;
+			}
+		}
+		if (lowest != null) {
+			entries.remove(lowest);
+		}
+	}
+
+	/**
+	 * @return the fingerprints with the highest total time, highest first
+	 */
+	public JsonArray top(int limit) {
+		List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, Entry>>() {
+			@Override
+			public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+				return Long.compare(b.getValue().totalTime.get(), a.getValue().totalTime.get());
+			}
+		});
+		JsonArray top = new JsonArray();
+		for (int i = 0; i < sorted.size() && i < limit; i++) {
+			Entry e = sorted.get(i).getValue();
+			final long count = e.count.get();
+			top.addObject(new JsonObject()
+					.putString("query", sorted.get(i).getKey())
+					.putNumber("count", count)
+					.putNumber("totalTime", e.totalTime.get() / 1000000d)
+					.putNumber("meanTime", (count > 0) ? e.totalTime.get() / 1000000d / count : 0d)
+					.putNumber("maxTime", e.maxTime.get() / 1000000d)
+					.putNumber("rows", e.rows.get())
+					.putNumber("bytes", e.bytes.get())
+					.putNumber("slow", e.slow.get())
+					.putNumber("errors", e.errors.get()));
+		}
+		return top;
+	}
+
+	/**
+	 * @return the number of rows of a result, of a batch or of a transaction
+	 */
+	public static long rows(JsonObject res) {
+		JsonArray rows = res.getArray("result", res.getArray("rows"));
+		if (rows != null) {
+			return rows.size();
+		}
+		JsonArray results = res.getArray("results");
+		if (results == null) {
+			return 0;
+		}
+		long count = 0;
+		for (Object o : results) {
+			if (o instanceof JsonArray) {
+				count += ((JsonArray) o).size();
+			} else if (o instanceof JsonObject) {
+				count += rows((JsonObject) o);
+			}
+		}
+		return count;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void reset() {
+		entries.clear();
+	}
+
+	private static String query(JsonObject body) {
+		String query = body.getString("query");
+		if (query == null) {
+			query = body.getString("statement");
+		}
+		if (query != null) {
+			return fingerprint(query);
+		}
+		JsonArray queries = body.getArray("queries");
+		if (queries == null) {
+			queries = body.getArray("statements");
+		}
+		if (queries == null || queries.size() == 0) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Object o : queries) {
+			if (!(o instanceof JsonObject)) continue;
+			String q = ((JsonObject) o).getString("query", ((JsonObject) o).getString("statement"));
+			if (q != null) {
+				if (sb.length() > 0) {
+					sb.append("; ");
+				}
+				sb.append(fingerprint(q));
+			}
+		}
+		return (sb.length() > 0) ? truncate(sb.toString()) : null;
+	}
+
+	public static String fingerprint(String query) {
+		String fingerprint = fingerprints.get(query);
+		if (fingerprint == null) {
+			fingerprint = truncate(normalize(query));
+			if (fingerprints.size() >= MAX_CACHED_QUERIES) {
+				fingerprints.clear();
+			}
+			fingerprints.put(query, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	private static String truncate(String fingerprint) {
+		return (fingerprint.length() > MAX_FINGERPRINT_LENGTH) ?
+				fingerprint.substring(0, MAX_FINGERPRINT_LENGTH) + "..." : fingerprint;
+	}
+
+	/**
+	 * Replaces string and number literals with ?, and a list of literals with [?],
+	 * removes comments and collapses whitespace. Names, escaped names and parameters are kept.
+	 */
+	static String normalize(String query) {
+		final int length = query.length();
+		final StringBuilder sb = new StringBuilder(length);
+		int i = 0;
+		while (i < length) {
+			char c = query.charAt(i);
+			if (c == '\'' || c == '"') {
+				i = CypherClassifier.skipQuoted(query, i, c);
+				literal(sb);
+			} else if (c == '`') {
+				int end = CypherClassifier.skipQuoted(query, i, c);
+				sb.append(query, i, end);
+				i = end;
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '/') {
+				i = query.indexOf('\n', i);
+				if (i < 0) {
+					i = length;
+				}
+				space(sb);
+			} else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*') {
+				i = query.indexOf("*/", i + 2);
+				i = (i < 0) ? length : i + 2;
+				space(sb);
+			} else if (Character.isLetter(c) || c == '_' || c == '$') {
+				int start = i++;
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_')) {
+					i++;
+				}
+				sb.append(query, start, i);
+			} else if (Character.isDigit(c)) {
+				while (i < length && (Character.isLetterOrDigit(query.charAt(i)) ||
+						(query.charAt(i) == '.' && i + 1 < length && Character.isDigit(query.charAt(i + 1))))) {
+					i++;
+				}
+				literal(sb);
+			} else if (Character.isWhitespace(c)) {
+				i++;
+				space(sb);
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		int end = sb.length();
+		while (end > 0 && sb.charAt(end - 1) == ' ') {
+			end--;
+		}
+		sb.setLength(end);
+		return sb.toString();
+	}
+
+	private static void space(StringBuilder sb) {
+		if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+			sb.append(' ');
+		}
+	}
+
+	/**
+	 * Appends ?, unless it continues a list of literals : [1, 2, 3] and [1] have the same fingerprint.
+	 */
+	private static void literal(StringBuilder sb) {
+		int end = sb.length();
+		if (end > 0 && sb.charAt(end - 1) == ' ') {
+			end--;
+		}
+		if (end > 1 && sb.charAt(end - 1) == ',' && sb.charAt(end - 2) == '?') {
+			sb.setLength(end - 1);
+			return;
+		}
+		sb.append('?');
+	}
+
+	private static final class Entry {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalTime = new AtomicLong();
+		private final AtomicLong maxTime = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong slow = new AtomicLong();
+		private final AtomicLong loggedSlow = new AtomicLong();
+		private final AtomicLong lastLog = new AtomicLong();
+	}
+
+}
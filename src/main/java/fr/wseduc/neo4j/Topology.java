@@ -0,0 +1,105 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the roles of the nodes of a cluster, by node index.
+ */
+public final class Topology {
+
+	static final Topology SINGLE = new Topology(0, new int[0]);
+
+	private final int master;
+	private final int[] slaves;
+
+	private Topology(int master, int[] slaves) {
+		this.master = master;
+		this.slaves = slaves;
+	}
+
+	/**
+	 * @return the index of the master node, or -1 if there is none
+	 */
+	public int master() {
+		return master;
+	}
+
+	public int slaveCount() {
+		return slaves.length;
+	}
+
+	public int slave(int i) {
+		return slaves[i];
+	}
+
+	public boolean isSlave(int idx) {
+		return indexOfSlave(idx) >= 0;
+	}
+
+	public int indexOfSlave(int idx) {
+		for (int i = 0; i < slaves.length; i++) {
+			if (slaves[i] == idx) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String role(int idx) {
+		if (master == idx) {
+			return "master";
+		}
+		return isSlave(idx) ? "slave" : "unavailable";
+	}
+
+	Topology withMaster(int idx) {
+		return (master == idx) ? this : new Topology(idx, without(idx));
+	}
+
+	Topology withSlave(int idx) {
+		if (master != idx && isSlave(idx)) {
+			return this;
+		}
+		int[] s = without(idx);
+		s = Arrays.copyOf(s, s.length + 1);
+		s[s.length - 1] = idx;
+		return new Topology((master == idx) ? -1 : master, s);
+	}
+
+	Topology withUnavailable(int idx) {
+		if (master != idx && !isSlave(idx)) {
+			return this;
+		}
+		return new Topology((master == idx) ? -1 : master, without(idx));
+	}
+
+	private int[] without(int idx) {
+		int i = indexOfSlave(idx);
+		if (i < 0) {
+			return slaves;
+		}
+		int[] s = new int[slaves.length - 1];
+		System.arraycopy(slaves, 0, s, 0, i);
+		System.arraycopy(slaves, i + 1, s, i, s.length - i);
+		return s;
+	}
+
+}
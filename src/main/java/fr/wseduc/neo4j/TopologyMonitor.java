@@ -0,0 +1,209 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Health checks of the nodes of a cluster, shared by every persistor instance of the JVM
+ * using the same server uris. The roles are published as an immutable snapshot read without locks,
+ * and each change is announced on a local event bus address so that every instance
+ * handles it on its own context.
+ * The health check clients and timer belong to the context of one of the instances (the owner),
+ * as Vert.x closes them with it. When the owner releases the monitor while other instances
+ * still use it, the checks are started again on the context of one of them.
+ */
+public class TopologyMonitor {
+
+	private static final Map<String, TopologyMonitor> monitors = new HashMap<>();
+	private static final Logger logger = LoggerFactory.getLogger(TopologyMonitor.class);
+
+	private final String key;
+	private final URI[] uris;
+	private final Vertx vertx;
+	private final String address = "neo4j.topology." + UUID.randomUUID().toString();
+	private final long delay;
+	private volatile Topology topology = Topology.SINGLE;
+	// guarded by monitors
+	private final List<Context> users = new ArrayList<>();
+	private Context owner;
+	private HttpClient[] clients;
+	private long checkTimerId = -1;
+
+	private TopologyMonitor(String key, URI[] uris, Vertx vertx, long delay) {
+		this.key = key;
+		this.uris = uris;
+		this.vertx = vertx;
+		this.delay = delay;
+	}
+
+	/**
+	 * Returns the monitor of the cluster, started by the first instance which needs it
+	 * with its check delay : the check delay of the other instances is ignored.
+	 * Each acquire must be followed by a release, on the same context.
+	 */
+	public static TopologyMonitor acquire(URI[] uris, Vertx vertx, long delay) {
+		final String key = Arrays.toString(uris);
+		final Context context = vertx.currentContext();
+		synchronized (monitors) {
+			TopologyMonitor monitor = monitors.get(key);
+			if (monitor == null) {
+				monitor = new TopologyMonitor(key, uris, vertx, delay);
+				monitors.put(key, monitor);
+			}
+			monitor.users.add(context);
+			if (monitor.owner == null) {
+				monitor.owner = context;
+				monitor.start();
+			}
+			return monitor;
+		}
+	}
+
+	public void release() {
+		final Context context = vertx.currentContext();
+		final Context next;
+		synchronized (monitors) {
+			users.remove(context);
+			if (context != owner || users.contains(context)) {
+				return;
+			}
+			stop();
+			if (users.isEmpty()) {
+				owner = null;
+				monitors.remove(key);
+				return;
+			}
+			next = owner = users.get(0);
+		}
+		next.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void event) {
+				synchronized (monitors) {
+					if (owner == next && clients == null) {
+						start();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates the clients and the timer of the checks on the current context, the owner one.
+	 */
+	private void start() {
+		clients = new HttpClient[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			clients[i] = vertx.createHttpClient()
+					.setHost(uris[i].getHost())
+					.setPort(uris[i].getPort())
+					.setMaxPoolSize(1)
+					.setKeepAlive(true);
+		}
+		checkHealth(clients);
+		final HttpClient[] c = clients;
+		checkTimerId = vertx.setPeriodic(delay, new Handler<Long>() {
+			@Override
+			public void handle(Long event) {
+				checkHealth(c);
+			}
+		});
+	}
+
+	private void stop() {
+		vertx.cancelTimer(checkTimerId);
+		for (HttpClient client : clients) {
+			client.close();
+		}
+		clients = null;
+	}
+
+	public Topology topology() {
+		return topology;
+	}
+
+	/**
+	 * Local event bus address on which each change of the topology is published.
+	 */
+	public String address() {
+		return address;
+	}
+
+	private void checkHealth(HttpClient[] clients) {
+		for (int i = 0; i < clients.length; i++) {
+			final int idx = i;
+			HttpClientRequest req = clients[i].get("/db/manage/server/ha/available",
+					new Handler<HttpClientResponse>() {
+				@Override
+				public void handle(HttpClientResponse resp) {
+					if (resp.statusCode() == 200) {
+						resp.bodyHandler(new Handler<Buffer>() {
+							@Override
+							public void handle(Buffer body) {
+								if ("master".equals(body.toString())) {
+									update(topology.withMaster(idx), idx);
+								} else {
+									update(topology.withSlave(idx), idx);
+								}
+							}
+						});
+					} else {
+						update(topology.withUnavailable(idx), idx);
+					}
+				}
+			});
+			req.exceptionHandler(new Handler<Throwable>() {
+				@Override
+				public void handle(Throwable t) {
+					update(topology.withUnavailable(idx), idx);
+				}
+			});
+			req.setTimeout(delay);
+			req.end();
+		}
+	}
+
+	private void update(Topology t, int idx) {
+		if (t == topology) {
+			return;
+		}
+		topology = t;
+		if (logger.isDebugEnabled()) {
+			logger.debug("Neo4j node " + idx + " (" + uris[idx].getHost() + ") is now " + t.role(idx) + ".");
+		}
+		vertx.eventBus().publish(address, t.role(idx));
+	}
+
+}
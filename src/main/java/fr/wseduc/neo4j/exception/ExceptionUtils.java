@@ -35,4 +35,17 @@ public class ExceptionUtils {
 			.putArray("stacktrace", stacktrace);
 	}
 
+	/**
+	 * An error raised by Neo4j while running the statements : a status code of the transactional
+	 * endpoint or a Neo4j exception. The transaction is then rolled back, so its statements can be sent again.
+	 * Transport errors, timeouts and rejections are not statement errors : the statements may have
+	 * been committed, or not sent at all.
+	 */
+	public static boolean isStatementError(JsonObject res) {
+		String exception = res.getString("exception");
+		String fullname = res.getString("fullname");
+		return (exception != null && exception.startsWith("Neo.")) ||
+				(fullname != null && fullname.startsWith("org.neo4j."));
+	}
+
 }
@@ -20,6 +20,10 @@ package fr.wseduc.neo4j.exception;
 
 public class Neo4jConnectionException extends Exception {
 
+	public Neo4jConnectionException(String message) {
+		super(message);
+	}
+
 	public Neo4jConnectionException(String message, Throwable cause) {
 		super(message, cause);
 	}
@@ -0,0 +1,113 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class BatchFolderTest {
+
+	private static final String UNWIND = "UNWIND {_fold_rows} AS _fold_row ";
+	private static final String QUERY = "MATCH (n:User) WHERE n.id = {id} SET n.name = {name}";
+
+	@Test
+	public void testRewrite() {
+		assertEquals(UNWIND + "MERGE (n:User {id : _fold_row.`id`}) SET n.name = _fold_row.`name`",
+				BatchFolder.rewrite("MERGE (n:User {id : {id}}) SET n.name = {name}"));
+		assertEquals(UNWIND + "MATCH (n:User) WHERE n.id = _fold_row.`id` " +
+				"RETURN _fold_row._fold_idx AS _fold_idx, n.name as name",
+				BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN n.name as name"));
+		assertEquals(UNWIND + "MATCH (n:User) WHERE n.name STARTS WITH _fold_row.`prefix` " +
+				"RETURN _fold_row._fold_idx AS _fold_idx, toUpper(_fold_row.`name`) as name",
+				BatchFolder.rewrite("MATCH (n:User) WHERE n.name STARTS WITH {prefix} RETURN toUpper({name}) as name"));
+		assertEquals(UNWIND + "MATCH (n:Limit) WHERE n.name = 'with' SET n.limit = _fold_row.`limit`",
+				BatchFolder.rewrite("MATCH (n:Limit) WHERE n.name = 'with' SET n.limit = {limit}"));
+		assertEquals(UNWIND + "MATCH (n:User) WHERE n.id IN _fold_row.`ids` DELETE n",
+				BatchFolder.rewrite("MATCH (n:User) WHERE n.id IN {ids} DELETE n"));
+		assertEquals(UNWIND + "MATCH (n:User) WHERE n.id = _fold_row.`id` SET n += _fold_row.`props`",
+				BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} SET n += {props}"));
+	}
+
+	@Test
+	public void testRefusedClauses() {
+		assertNull(BatchFolder.rewrite(null));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WITH n SET n.name = {name}"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN DISTINCT n.name"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN n ORDER BY n.name"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN n SKIP 1"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN n LIMIT 1"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) RETURN n.id as id UNION MATCH (n:Group) RETURN n.id as id"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN *"));
+		assertNull(BatchFolder.rewrite("CALL db.labels()"));
+		assertNull(BatchFolder.rewrite("MATCH (_fold_row:User) SET _fold_row.name = {name}"));
+	}
+
+	@Test
+	public void testRefusedAggregates() {
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN count(n) as nb"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.id = {id} RETURN COLLECT (n.name) as names"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) WHERE n.age > {age} RETURN avg(n.age) as age"));
+	}
+
+	@Test
+	public void testRefusedComments() {
+		assertNull(BatchFolder.rewrite("MATCH (n:User) // by id\nWHERE n.id = {id} SET n.seen = true"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User) /* by id */ WHERE n.id = {id} SET n.seen = true"));
+	}
+
+	@Test
+	public void testRefusedPatternParameters() {
+		assertNull(BatchFolder.rewrite("CREATE (n:User {props})"));
+		assertNull(BatchFolder.rewrite("MATCH (n {props}) SET n.seen = true"));
+		assertNull(BatchFolder.rewrite("MATCH (n:User)-[r:KNOWS {props}]->(m) DELETE r"));
+	}
+
+	@Test
+	public void testFold() {
+		JsonArray queries = new JsonArray()
+				.addObject(entry(new JsonObject().putNumber("id", 1).putString("name", "Rose")))
+				.addObject(entry(new JsonObject().putNumber("id", 2).putValue("name", null)));
+		BatchFolder.Folded folded = new BatchFolder(new JsonObject()).fold(queries);
+		assertNotNull(folded);
+		assertEquals(1, folded.queries().size());
+		JsonArray rows = ((JsonObject) folded.queries().get(0)).getObject("params").getArray("_fold_rows");
+		assertEquals(2, rows.size());
+		assertEquals(1, ((JsonObject) rows.get(1)).getNumber("_fold_idx").intValue());
+	}
+
+	@Test
+	public void testRefusedMissingParameter() {
+		JsonArray queries = new JsonArray()
+				.addObject(entry(new JsonObject().putNumber("id", 1).putString("name", "Rose")))
+				.addObject(entry(new JsonObject().putNumber("id", 2)))
+				.addObject(entry(new JsonObject().putNumber("id", 3).putString("name", "Martha")));
+		assertNull(new BatchFolder(new JsonObject()).fold(queries));
+		assertNull(new BatchFolder(new JsonObject()).fold(new JsonArray()
+				.addObject(entry(new JsonObject().putNumber("id", 1).putString("name", "Rose")))
+				.addObject(new JsonObject().putString("query", QUERY))));
+	}
+
+	private static JsonObject entry(JsonObject params) {
+		return new JsonObject().putString("query", QUERY).putObject("params", params);
+	}
+
+}
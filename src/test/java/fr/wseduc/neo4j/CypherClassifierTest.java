@@ -0,0 +1,61 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CypherClassifierTest {
+
+	@Test
+	public void testReads() {
+		assertFalse(CypherClassifier.isWrite(null));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) RETURN n.created, n.set, n.delete"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = 'merge ' RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = \"CREATE (m)\" RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = 'it\\'s a set' RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = \"a\\\"delete\" RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (`create`:User) RETURN `create`.name"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:Set)-[:REMOVE]->(m:Merge) RETURN m"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User {set : 1, delete : 2}) RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) WHERE n.id = {create} RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) RETURN n // delete them later"));
+		assertFalse(CypherClassifier.isWrite("/* merge the users */ MATCH (n:User) RETURN n"));
+		assertFalse(CypherClassifier.isWrite("MATCH (n:User) RETURN n.name AS created"));
+	}
+
+	@Test
+	public void testWrites() {
+		assertTrue(CypherClassifier.isWrite("CREATE (n:User {name : 'Rose'})"));
+		assertTrue(CypherClassifier.isWrite("match (n:User) set n.name = 'Rose'"));
+		assertTrue(CypherClassifier.isWrite("MERGE (n:User {id : {id}}) ON CREATE SET n.created = timestamp()"));
+		assertTrue(CypherClassifier.isWrite("MATCH (n:User) DETACH DELETE n"));
+		assertTrue(CypherClassifier.isWrite("MATCH (n:User) REMOVE n:Admin"));
+		assertTrue(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = 'merge ' SET n.name = 'merged'"));
+		assertTrue(CypherClassifier.isWrite("MATCH (n:User) WHERE n.name = \"a\\\"b\" DELETE n"));
+		assertTrue(CypherClassifier.isWrite("MATCH p = (n:User)-->() FOREACH (m IN nodes(p) | SET m.seen = true)"));
+		assertTrue(CypherClassifier.isWrite("// delete the users\nMATCH (n:User) DELETE n"));
+		assertTrue(CypherClassifier.isWrite("/* set */ MATCH (n:User) SET n.name = 'Rose'"));
+		assertTrue(CypherClassifier.isWrite("DROP INDEX ON :User(name)"));
+		assertTrue(CypherClassifier.isWrite("USING PERIODIC COMMIT LOAD CSV FROM 'file:///users.csv' AS line " +
+				"CREATE (:User {name : line[0]})"));
+	}
+
+}
@@ -0,0 +1,104 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class JsonStreamParserTest {
+
+	private static final String DOCUMENT = "{\"name\" : \"Été \\\"quoted\\\" \\\\ back\\/slash\\n\\ttab\\r\\b\\f\", " +
+			"\"unicode\" : \"\\u00e9t\\u00C9 \\ud83d\\ude00\", " +
+			"\"utf8\" : \"日本語 😀 ça\", " +
+			"\"numbers\" : [0, -12, 3.5, -0.25, 1e3, 2.5E-3, 12345678901], " +
+			"\"literals\" : [true, false, null], " +
+			"\"empty\" : {}, \"none\" : [], " +
+			"\"nested\" : [[1, [2, {\"k\" : \"v\"}]], {\"a\" : {\"b\" : []}}],\n\t\"\" : \"empty key\"}";
+
+	@Test
+	public void testWholeDocument() throws Exception {
+		byte[] bytes = DOCUMENT.getBytes("UTF-8");
+		assertEquals(new JsonObject(DOCUMENT), parse(bytes));
+	}
+
+	@Test
+	public void testTwoChunks() throws Exception {
+		byte[] bytes = DOCUMENT.getBytes("UTF-8");
+		JsonObject expected = new JsonObject(DOCUMENT);
+		for (int i = 0; i <= bytes.length; i++) {
+			assertEquals("split at " + i, expected, parse(bytes, i));
+		}
+	}
+
+	@Test
+	public void testThreeChunks() throws Exception {
+		byte[] bytes = DOCUMENT.getBytes("UTF-8");
+		JsonObject expected = new JsonObject(DOCUMENT);
+		for (int i = 0; i <= bytes.length; i++) {
+			for (int j = i; j <= bytes.length; j++) {
+				assertEquals("split at " + i + " and " + j, expected, parse(bytes, i, j));
+			}
+		}
+	}
+
+	@Test
+	public void testByteByByte() throws Exception {
+		byte[] bytes = DOCUMENT.getBytes("UTF-8");
+		int[] splits = new int[bytes.length];
+		for (int i = 0; i < splits.length; i++) {
+			splits[i] = i;
+		}
+		assertEquals(new JsonObject(DOCUMENT), parse(bytes, splits));
+	}
+
+	@Test(expected = DecodeException.class)
+	public void testTruncatedDocument() throws Exception {
+		byte[] bytes = DOCUMENT.getBytes("UTF-8");
+		parse(Arrays.copyOf(bytes, bytes.length - 1));
+	}
+
+	@Test(expected = DecodeException.class)
+	public void testInvalidDocument() throws UnsupportedEncodingException {
+		parse("{\"a\" : [1, 2}".getBytes("UTF-8"));
+	}
+
+	/**
+	 * Feeds the bytes in chunks cut at the given positions.
+	 */
+	private static JsonObject parse(byte[] bytes, int... splits) {
+		Neo4jResultParser.ValueBuilder builder = new Neo4jResultParser.ValueBuilder();
+		JsonStreamParser parser = new JsonStreamParser(builder);
+		int start = 0;
+		for (int split : splits) {
+			parser.handle(new Buffer(Arrays.copyOfRange(bytes, start, split)));
+			start = split;
+		}
+		parser.handle(new Buffer(Arrays.copyOfRange(bytes, start, bytes.length)));
+		parser.end();
+		return builder.result().asObject();
+	}
+
+}
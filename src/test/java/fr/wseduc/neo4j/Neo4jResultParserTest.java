@@ -0,0 +1,150 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class Neo4jResultParserTest {
+
+	private static final String CYPHER = "{\"columns\" : [\"name\", \"n\"], \"data\" : [" +
+			"[\"Rémy \\\"the\\\" \\\\ \\u00e9\", {\"data\" : {\"name\" : \"日本 😀\", \"ids\" : [1, 2]}, " +
+			"\"self\" : \"http://localhost:7474/db/data/node/1\"}], " +
+			"[null, {\"data\" : {}, \"self\" : \"http://localhost:7474/db/data/node/2\"}]]}";
+
+	private static final String TRANSACTION = "{\"commit\" : \"http://localhost:7474/db/data/transaction/42/commit\", " +
+			"\"results\" : [{\"columns\" : [\"a\"], \"data\" : [{\"row\" : [1]}, {\"row\" : [\"é\\n\"]}]}, " +
+			"{\"columns\" : [\"b\", \"c\"], \"data\" : [{\"rest\" : [[1.5, -2], {\"k\" : \"v\\u00e9\"}]}]}], " +
+			"\"transaction\" : {\"expires\" : \"Thu, 01 Jan 2015 00:00:00 +0000\"}, \"errors\" : []}";
+
+	private static final String BATCH = "[{\"id\" : 0, \"from\" : \"/cypher\", \"body\" : " +
+			"{\"columns\" : [\"x\"], \"data\" : [[1], [\"ç\\t\"], [{\"a\" : [true, false]}]]}, \"status\" : 200}, " +
+			"{\"id\" : 1, \"from\" : \"/cypher\", \"body\" : {\"columns\" : [\"y\"], \"data\" : []}, \"status\" : 200}]";
+
+	@Test
+	public void testCypher() throws Exception {
+		JsonObject body = new JsonObject(CYPHER);
+		for (ResultCollector c : parseAllSplits(CYPHER)) {
+			assertEquals(1, c.size());
+			assertEquals(rows(body.getArray("columns"), body.getArray("data"), null), c.result(0));
+		}
+	}
+
+	@Test
+	public void testDataBeforeColumns() throws Exception {
+		String cypher = "{\"data\" : [[1, \"a\"], [2, \"b\"]], \"columns\" : [\"x\", \"y\"]}";
+		JsonObject body = new JsonObject(cypher);
+		for (ResultCollector c : parseAllSplits(cypher)) {
+			assertEquals(rows(body.getArray("columns"), body.getArray("data"), null), c.result(0));
+		}
+		String transaction = "{\"results\" : [{\"data\" : [{\"row\" : [1]}], \"columns\" : [\"a\"]}, " +
+				"{\"columns\" : [\"b\"], \"data\" : [{\"row\" : [2]}]}], \"errors\" : []}";
+		JsonArray results = new JsonObject(transaction).getArray("results");
+		for (ResultCollector c : parseAllSplits(transaction)) {
+			for (int i = 0; i < results.size(); i++) {
+				JsonObject result = results.get(i);
+				assertEquals(rows(result.getArray("columns"), result.getArray("data"), "row"), c.result(i));
+			}
+		}
+	}
+
+	@Test(expected = DecodeException.class)
+	public void testDataWithoutColumns() throws Exception {
+		parse("{\"data\" : [[1]]}".getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testTransaction() throws Exception {
+		JsonObject body = new JsonObject(TRANSACTION);
+		JsonArray results = body.getArray("results");
+		for (ResultCollector c : parseAllSplits(TRANSACTION)) {
+			assertEquals(2, c.size());
+			for (int i = 0; i < results.size(); i++) {
+				JsonObject result = results.get(i);
+				assertEquals(rows(result.getArray("columns"), result.getArray("data"), (i == 0) ? "row" : "rest"),
+						c.result(i));
+			}
+			assertEquals(body.getString("commit"), c.fields().getString("commit"));
+			assertEquals(body.getObject("transaction"), c.fields().getObject("transaction"));
+			assertEquals(0, c.fields().getArray("errors").size());
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		JsonArray body = new JsonArray(BATCH);
+		for (ResultCollector c : parseAllSplits(BATCH)) {
+			assertEquals(2, c.size());
+			for (int i = 0; i < body.size(); i++) {
+				JsonObject result = ((JsonObject) body.get(i)).getObject("body");
+				assertEquals(rows(result.getArray("columns"), result.getArray("data"), null), c.result(i));
+			}
+		}
+	}
+
+	/**
+	 * Rows expected from the decoded body, keyed by column.
+	 */
+	private static JsonArray rows(JsonArray columns, JsonArray data, String format) {
+		JsonArray rows = new JsonArray();
+		for (Object o : data) {
+			JsonArray row = (format != null) ? ((JsonObject) o).getArray(format) : (JsonArray) o;
+			rows.addObject(ResultCollector.transformRow(columns, row));
+		}
+		return rows;
+	}
+
+	/**
+	 * Parses the body in two chunks split at each byte, then byte by byte.
+	 */
+	private static ResultCollector[] parseAllSplits(String body) throws Exception {
+		byte[] bytes = body.getBytes("UTF-8");
+		ResultCollector[] collectors = new ResultCollector[bytes.length + 2];
+		for (int i = 0; i <= bytes.length; i++) {
+			collectors[i] = parse(bytes, i);
+		}
+		int[] splits = new int[bytes.length];
+		for (int i = 0; i < splits.length; i++) {
+			splits[i] = i;
+		}
+		collectors[bytes.length + 1] = parse(bytes, splits);
+		return collectors;
+	}
+
+	private static ResultCollector parse(byte[] bytes, int... splits) {
+		ResultCollector collector = new ResultCollector();
+		JsonStreamParser parser = new JsonStreamParser(new Neo4jResultParser(collector));
+		int start = 0;
+		for (int split : splits) {
+			parser.handle(new Buffer(Arrays.copyOfRange(bytes, start, split)));
+			start = split;
+		}
+		parser.handle(new Buffer(Arrays.copyOfRange(bytes, start, bytes.length)));
+		parser.end();
+		return collector;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*  Copyright © WebServices pour l'Éducation, 2014
+ *
+ *  This file is part of mod-neo4j-persistor. mod-neo4j-persistor is a vertx module to use neo4j database.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fr.wseduc.neo4j;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+	private static final JsonArray RESULT = new JsonArray().addObject(new JsonObject().putString("name", "Rose"));
+
+	@Test
+	public void testUnrelatedWriteKeepsReadsInFlight() {
+		ResultCache cache = new ResultCache(new JsonObject());
+		long generation = cache.generation();
+		cache.writeStarted(tags("Group"));
+		cache.invalidate(tags("Group"));
+		cache.put("users", RESULT, 0, tags("User"), generation);
+		assertEquals(RESULT, cache.get("users"));
+	}
+
+	@Test
+	public void testRelatedWriteKeepsReadsInFlightOut() {
+		ResultCache cache = new ResultCache(new JsonObject());
+		long generation = cache.generation();
+		cache.writeStarted(tags("User", "Group"));
+		cache.put("users", RESULT, 0, tags("User"), generation);
+		assertNull(cache.get("users"));
+		generation = cache.generation();
+		cache.writeStarted(Collections.<String>emptySet());
+		cache.put("groups", RESULT, 0, tags("Group"), generation);
+		assertNull(cache.get("groups"));
+		generation = cache.generation();
+		cache.writeStarted(tags("Group"));
+		cache.put("untagged", RESULT, 0, Collections.<String>emptySet(), generation);
+		assertNull(cache.get("untagged"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		ResultCache cache = new ResultCache(new JsonObject());
+		cache.put("users", RESULT, 0, tags("User"), cache.generation());
+		cache.put("groups", RESULT, 0, tags("Group", "User"), cache.generation());
+		cache.put("classes", RESULT, 0, tags("Class"), cache.generation());
+		cache.put("untagged", RESULT, 0, Collections.<String>emptySet(), cache.generation());
+		cache.writeStarted(tags("User"));
+		assertEquals(RESULT, cache.get("users"));
+		cache.invalidate(tags("User"));
+		assertNull(cache.get("users"));
+		assertNull(cache.get("groups"));
+		assertNull(cache.get("untagged"));
+		assertEquals(RESULT, cache.get("classes"));
+		assertEquals(3l, (long) cache.stats().getLong("invalidations"));
+		cache.invalidate(Collections.<String>emptySet());
+		assertNull(cache.get("classes"));
+		assertEquals(0, (int) cache.stats().getInteger("entries"));
+		assertEquals(0l, (long) cache.stats().getLong("bytes"));
+	}
+
+	@Test
+	public void testEviction() {
+		ResultCache cache = new ResultCache(new JsonObject().putNumber("max-size", 100));
+		cache.put("first", RESULT, 0, tags("User"), cache.generation());
+		cache.put("second", RESULT, 0, tags("User"), cache.generation());
+		cache.put("third", RESULT, 0, tags("User"), cache.generation());
+		assertNull(cache.get("first"));
+		assertEquals(RESULT, cache.get("third"));
+		assertTrue(cache.stats().getLong("evictions") > 0);
+		cache.invalidate(tags("User"));
+		assertEquals(0, (int) cache.stats().getInteger("entries"));
+		assertEquals(0l, (long) cache.stats().getLong("bytes"));
+	}
+
+	private static Set<String> tags(String... tags) {
+		return new HashSet<>(Arrays.asList(tags));
+	}
+
+}
@@ -23,18 +23,22 @@ import org.junit.rules.TemporaryFolder;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import static org.vertx.testtools.VertxAssert.*;
 
 public class Neo4jPersistorTest extends TestVerticle {
 
 	private static final String TEST_PERSISTOR = "test.persistor";
+	private static final String FEATURES_PERSISTOR = "test.persistor.features";
 	private TemporaryFolder tmpFolder;
 
 	@Override
@@ -80,6 +84,30 @@ public class Neo4jPersistorTest extends TestVerticle {
 		vertx.eventBus().send(TEST_PERSISTOR, jo, handler);
 	}
 
+	/**
+	 * Deploys a second persistor, on its own database, with the given optional features.
+	 * Nothing is deployed on the first run of the test, before the test persistor is started.
+	 */
+	private void deployFeatures(JsonObject config, final Handler<Void> handler) {
+		if (tmpFolder == null) {
+			return;
+		}
+		try {
+			config.putString("datastore-path", tmpFolder.newFolder().getAbsolutePath());
+		} catch (IOException e) {
+			fail(e.getMessage());
+			return;
+		}
+		config.putString("address", FEATURES_PERSISTOR);
+		container.deployModule(System.getProperty("vertx.modulename"), config, 1,
+				new AsyncResultHandler<String>() {
+			public void handle(AsyncResult<String> ar) {
+				assertTrue(ar.succeeded());
+				handler.handle(null);
+			}
+		});
+	}
+
 	@Test
 	public void testAddIndexes() {
 		String query = "CREATE CONSTRAINT ON (actor:Actor) ASSERT actor.name IS UNIQUE;";
@@ -176,4 +204,451 @@ public class Neo4jPersistorTest extends TestVerticle {
 		});
 	}
 
+	@Test
+	public void testCursor() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "UNWIND range(1, 5) as idx RETURN idx")
+				.putNumber("fetchSize", 2);
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				assertEquals(2, message.body().getArray("result").size());
+				String cursorId = message.body().getString("cursorId");
+				assertNotNull(cursorId);
+				JsonObject fetch = new JsonObject()
+						.putString("action", "fetch")
+						.putString("cursorId", cursorId)
+						.putNumber("fetchSize", 10);
+				vertx.eventBus().send(TEST_PERSISTOR, fetch, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						JsonArray result = message.body().getArray("result");
+						assertEquals(3, result.size());
+						assertEquals(5, (int) ((JsonObject) result.get(2)).getInteger("idx"));
+						assertNull(message.body().getString("cursorId"));
+						testComplete();
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testResultCache() {
+		deployFeatures(new JsonObject().putObject("result-cache", new JsonObject()), new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				final JsonObject jo = new JsonObject()
+						.putString("action", "execute")
+						.putString("query", "MATCH (d:Dalek {name : {name}}) RETURN count(d) as nb")
+						.putObject("params", new JsonObject().putString("name", "Caan"))
+						.putObject("cache", new JsonObject().putNumber("ttl", 60000));
+				vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> message) {
+								assertEquals("ok", message.body().getString("status"));
+								JsonObject r = message.body().getArray("result").get(0);
+								assertEquals(0, (int) r.getInteger("nb"));
+								JsonObject stats = new JsonObject().putString("action", "cacheStats");
+								vertx.eventBus().send(FEATURES_PERSISTOR, stats, new Handler<Message<JsonObject>>() {
+									@Override
+									public void handle(Message<JsonObject> message) {
+										assertEquals(1l, (long) message.body().getLong("hits"));
+										assertEquals(1l, (long) message.body().getLong("misses"));
+										testComplete();
+									}
+								});
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testStats() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "RETURN 1 as one");
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				JsonObject stats = new JsonObject().putString("action", "stats");
+				vertx.eventBus().send(TEST_PERSISTOR, stats, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						JsonObject execute = message.body().getObject("actions").getObject("execute");
+						assertEquals(1l, (long) execute.getObject("latency").getLong("count"));
+						assertEquals(0, (int) execute.getInteger("inFlight"));
+						assertEquals(1l, (long) message.body().getObject("database").getLong("statements"));
+						testComplete();
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testColumnar() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "UNWIND range(1, 3) AS i RETURN i, 'Dalek' as name")
+				.putString("format", "columnar");
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				assertEquals("[\"i\",\"name\"]", message.body().getArray("columns").encode());
+				JsonArray rows = message.body().getArray("rows");
+				assertEquals(3, rows.size());
+				assertEquals("[1,\"Dalek\"]", ((JsonArray) rows.get(0)).encode());
+				testComplete();
+			}
+		});
+	}
+
+	@Test
+	public void testGraphValues() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "CREATE p = (a:Graph {ids : [1, 2], scores : [0.5]})-[r:KNOWS {since : 2010}]->(b:Graph) " +
+						"RETURN a, r, p");
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				JsonObject row = message.body().getArray("result").get(0);
+				assertEquals("[1,2]", row.getObject("a").getObject("data").getArray("ids").encode());
+				assertEquals("[0.5]", row.getObject("a").getObject("data").getArray("scores").encode());
+				JsonObject r = row.getObject("r");
+				assertEquals("KNOWS", r.getString("type"));
+				assertEquals(2010, r.getObject("data").getNumber("since").intValue());
+				JsonObject p = row.getObject("p");
+				assertEquals(1, p.getNumber("length").intValue());
+				assertEquals(2, p.getArray("nodes").size());
+				assertEquals(r.getNumber("id"), ((JsonObject) p.getArray("relationships").get(0)).getNumber("id"));
+				testComplete();
+			}
+		});
+	}
+
+	@Test
+	public void testBulkLoad() {
+		JsonArray rows = new JsonArray();
+		for (int i = 0; i < 25; i++) {
+			rows.addObject(new JsonObject().putNumber("id", i).putNumber("div", (i == 12) ? 0 : 1));
+		}
+		JsonObject jo = new JsonObject()
+				.putString("action", "bulkLoad")
+				.putString("statement", "CREATE (:Bulk {id : row.id / row.div, source : {source}})")
+				.putObject("params", new JsonObject().putString("source", "rows"))
+				.putArray("rows", rows)
+				.putNumber("chunkSize", 10)
+				.putNumber("concurrency", 2);
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				assertEquals(25, message.body().getNumber("read").intValue());
+				assertEquals(15, message.body().getNumber("loaded").intValue());
+				assertEquals(3, message.body().getNumber("chunks").intValue());
+				assertEquals(1, message.body().getNumber("failedChunks").intValue());
+				JsonObject failure = message.body().getArray("failures").get(0);
+				assertEquals(10, failure.getNumber("offset").intValue());
+				JsonObject jo = new JsonObject()
+						.putString("action", "bulkLoad")
+						.putString("statement", "CREATE (:Bulk {id : row.id})")
+						.putString("file", "/etc/passwd");
+				vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("error", message.body().getString("status"));
+						execute("MATCH (n:Bulk) RETURN count(n) as nb", null, new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> message) {
+								JsonObject row = message.body().getArray("result").get(0);
+								assertEquals(15, row.getNumber("nb").intValue());
+								testComplete();
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testBulkLoadFile() throws IOException {
+		final File dir = Files.createTempDirectory("bulk").toFile();
+		final File file = new File(dir, "bulk.json");
+		dir.deleteOnExit();
+		file.deleteOnExit();
+		Files.write(file.toPath(), ("{\"id\" : 100, \"div\" : 1}\nnot json\n\n{\"id\" : 101, \"div\" : 1}\n" +
+				"{\"id\" : 102, \"div\" : 1, \"padding\" : \"longer than the maximum line length\"}\n" +
+				"{\"id\" : 103, \"div\" : 1}").getBytes("UTF-8"));
+		JsonObject config = new JsonObject().putObject("bulk-load", new JsonObject()
+				.putString("files-dir", dir.getAbsolutePath())
+				.putNumber("max-line-length", 64));
+		deployFeatures(config, new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				JsonObject jo = new JsonObject()
+						.putString("action", "bulkLoad")
+						.putString("statement", "CREATE (:Bulk {id : row.id / row.div, source : 'file'})")
+						.putString("file", "bulk.json");
+				vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						assertEquals(3, message.body().getNumber("loaded").intValue());
+						assertEquals(2, message.body().getNumber("invalidRows").intValue());
+						for (Object o : message.body().getArray("failures")) {
+							assertFalse(((JsonObject) o).getString("message").contains("not json"));
+						}
+						JsonObject jo = new JsonObject()
+								.putString("action", "bulkLoad")
+								.putString("statement", "CREATE (:Bulk {id : row.id})")
+								.putString("file", "../" + dir.getName() + "/../bulk.json");
+						vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> message) {
+								assertEquals("error", message.body().getString("status"));
+								testComplete();
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testBatchFolding() {
+		deployFeatures(new JsonObject().putObject("batch-folding", new JsonObject()), new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				JsonArray queries = new JsonArray();
+				for (int i = 0; i < 3; i++) {
+					queries.addObject(new JsonObject().putString("query", "MERGE (n:Folded {id : {id}}) SET n.name = {name}")
+							.putObject("params", new JsonObject().putNumber("id", i).putString("name", "folded" + i)));
+				}
+				queries.addObject(new JsonObject().putString("query", "MATCH (n:Folded) RETURN count(n) as nb"));
+				for (int i = 2; i >= 0; i--) {
+					queries.addObject(new JsonObject().putString("query", "MATCH (n:Folded {id : {id}}) RETURN n.name as name")
+							.putObject("params", new JsonObject().putNumber("id", i)));
+				}
+				JsonObject jo = new JsonObject().putString("action", "executeBatch").putArray("queries", queries);
+				vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						JsonArray results = message.body().getArray("results");
+						assertEquals(7, results.size());
+						for (int i = 0; i < 7; i++) {
+							assertEquals(i, ((JsonObject) results.get(i)).getNumber("idx").intValue());
+						}
+						assertEquals(0, ((JsonObject) results.get(0)).getArray("result").size());
+						JsonObject count = ((JsonObject) results.get(3)).getArray("result").get(0);
+						assertEquals(3, count.getNumber("nb").intValue());
+						for (int i = 4; i < 7; i++) {
+							JsonArray result = ((JsonObject) results.get(i)).getArray("result");
+							assertEquals(1, result.size());
+							assertEquals("[\"name\"]", new JsonArray(((JsonObject) result.get(0)).getFieldNames().toArray()).encode());
+							assertEquals("folded" + (6 - i), ((JsonObject) result.get(0)).getString("name"));
+						}
+						testComplete();
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testEncoded() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "CREATE (n:Encoded {ids : [1, 2, 3], tags : ['a', 'b\"c'], name : 'Été'}) " +
+						"RETURN n, n.ids as ids, 1.5 as f, null as nothing")
+				.putBoolean("encoded", true);
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<Buffer>>() {
+			@Override
+			public void handle(Message<Buffer> message) {
+				JsonObject body = new JsonObject(message.body().toString("UTF-8"));
+				assertEquals("ok", body.getString("status"));
+				JsonObject row = body.getArray("result").get(0);
+				JsonObject data = row.getObject("n").getObject("data");
+				assertEquals("[1,2,3]", data.getArray("ids").encode());
+				assertEquals("[\"a\",\"b\\\"c\"]", data.getArray("tags").encode());
+				assertEquals("Été", data.getString("name"));
+				assertEquals("[1,2,3]", row.getArray("ids").encode());
+				assertEquals(1.5, row.getNumber("f").doubleValue(), 0.0);
+				assertTrue(row.containsField("nothing"));
+				assertNull(row.getValue("nothing"));
+				testComplete();
+			}
+		});
+	}
+
+	@Test
+	public void testReadYourWrites() {
+		deployFeatures(new JsonObject().putObject("read-your-writes", new JsonObject()), new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				JsonObject jo = new JsonObject()
+						.putString("action", "execute")
+						.putString("query", "CREATE (n:Session {name : 'written'}) RETURN n.name as name")
+						.putString("session", "writer");
+				vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						final JsonObject read = new JsonObject()
+								.putString("action", "execute")
+								.putString("query", "MATCH (n:Session) RETURN n.name as name")
+								.putString("session", "writer");
+						vertx.eventBus().send(FEATURES_PERSISTOR, read, new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> message) {
+								assertEquals("written", ((JsonObject) message.body().getArray("result").get(0))
+										.getString("name"));
+								read.putString("session", "reader");
+								vertx.eventBus().send(FEATURES_PERSISTOR, read, new Handler<Message<JsonObject>>() {
+									@Override
+									public void handle(Message<JsonObject> message) {
+										assertEquals("ok", message.body().getString("status"));
+										JsonObject stats = new JsonObject().putString("action", "stats");
+										vertx.eventBus().send(FEATURES_PERSISTOR, stats, new Handler<Message<JsonObject>>() {
+											@Override
+											public void handle(Message<JsonObject> message) {
+												JsonObject sessions = message.body().getObject("readYourWrites");
+												assertEquals(1l, (long) sessions.getLong("masterReads"));
+												assertEquals(1l, (long) sessions.getLong("slaveReads"));
+												testComplete();
+											}
+										});
+									}
+								});
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testQueryTimeout() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "UNWIND range(1, 10) AS i CREATE (n:Timeout {i : i})");
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				final long start = System.currentTimeMillis();
+				JsonObject slow = new JsonObject()
+						.putString("action", "execute")
+						.putString("query", "MATCH (a:Timeout), (b:Timeout), (c:Timeout), (d:Timeout), " +
+								"(e:Timeout), (f:Timeout), (g:Timeout), (h:Timeout), (i:Timeout) RETURN count(*) as c")
+						.putNumber("timeout", 200);
+				vertx.eventBus().send(TEST_PERSISTOR, slow, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("error", message.body().getString("status"));
+						assertTrue(message.body().getString("message").contains("timeout"));
+						assertTrue(System.currentTimeMillis() - start < 10000);
+						testComplete();
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testCursorQueryTimeout() {
+		JsonObject jo = new JsonObject()
+				.putString("action", "execute")
+				.putString("query", "UNWIND range(1, 10) AS i CREATE (n:CursorTimeout {i : i})");
+		vertx.eventBus().send(TEST_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+			@Override
+			public void handle(Message<JsonObject> message) {
+				assertEquals("ok", message.body().getString("status"));
+				final long start = System.currentTimeMillis();
+				JsonObject slow = new JsonObject()
+						.putString("action", "execute")
+						.putString("query", "MATCH (a:CursorTimeout), (b:CursorTimeout), (c:CursorTimeout), " +
+								"(d:CursorTimeout), (e:CursorTimeout), (f:CursorTimeout), (g:CursorTimeout), " +
+								"(h:CursorTimeout), (i:CursorTimeout) RETURN count(*) as c")
+						.putNumber("fetchSize", 10)
+						.putNumber("timeout", 200);
+				vertx.eventBus().send(TEST_PERSISTOR, slow, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("error", message.body().getString("status"));
+						assertTrue(message.body().getString("message").contains("timeout"));
+						assertTrue(System.currentTimeMillis() - start < 10000);
+						testComplete();
+					}
+				});
+			}
+		});
+	}
+
+	@Test
+	public void testSlowQueries() {
+		deployFeatures(new JsonObject().putObject("slow-queries", new JsonObject()), new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				JsonObject jo = new JsonObject()
+						.putString("action", "execute")
+						.putString("query", "CREATE (n:Fingerprint {name : 'first', rank : 1}) RETURN n.name as name");
+				vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+					@Override
+					public void handle(Message<JsonObject> message) {
+						assertEquals("ok", message.body().getString("status"));
+						JsonObject jo = new JsonObject()
+								.putString("action", "execute")
+								.putString("query", "CREATE (n:Fingerprint {name : \"second\", rank : 2})   RETURN n.name as name");
+						vertx.eventBus().send(FEATURES_PERSISTOR, jo, new Handler<Message<JsonObject>>() {
+							@Override
+							public void handle(Message<JsonObject> message) {
+								assertEquals("ok", message.body().getString("status"));
+								JsonObject top = new JsonObject().putString("action", "slowQueries").putNumber("limit", 1000);
+								vertx.eventBus().send(FEATURES_PERSISTOR, top, new Handler<Message<JsonObject>>() {
+									@Override
+									public void handle(Message<JsonObject> message) {
+										assertEquals("ok", message.body().getString("status"));
+										JsonObject fingerprint = null;
+										for (Object o : message.body().getArray("queries")) {
+											if (((JsonObject) o).getString("query").contains(":Fingerprint")) {
+												assertNull(fingerprint);
+												fingerprint = (JsonObject) o;
+											}
+										}
+										assertNotNull(fingerprint);
+										assertEquals("CREATE (n:Fingerprint {name : ?, rank : ?}) RETURN n.name as name",
+												fingerprint.getString("query"));
+										assertEquals(2l, (long) fingerprint.getLong("count"));
+										assertEquals(2l, (long) fingerprint.getLong("rows"));
+										testComplete();
+									}
+								});
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
 }